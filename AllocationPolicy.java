@@ -0,0 +1,14 @@
+/**
+ * How the output file gets its full size before the workers start writing
+ */
+public enum AllocationPolicy {
+	/**
+	 * Set the length of the file only, the filesystem allocates the blocks as they are written
+	 */
+	SPARSE,
+
+	/**
+	 * Write zeros over the whole file, so the blocks are allocated once and in order. Costs a write of the file.
+	 */
+	PREALLOCATE
+}
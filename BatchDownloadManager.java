@@ -0,0 +1,307 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads many files, each with its own mirrors, while sharing one connection budget between all of them
+ */
+public class BatchDownloadManager {
+	private static final int MAX_ACTIVE_FILES = 4;
+	private static final int PROBE_THREADS = 4;
+	private static final int PROBE_LOOKAHEAD = 8;
+	private static final int DEFAULT_PRIORITY = 0;
+
+	private final List<BatchEntry> entries;
+	private final int maxConnections;
+	private final ChunkCache chunkCache;
+	private final AllocationPolicy allocationPolicy;
+	private final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+	private final BatchHandle handle = new BatchHandle();
+
+	private final AtomicInteger succeeded = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * @param entries          - files to download
+	 * @param maxConnections   - maximum number of connections to open at the same time, for all the files together
+	 * @param chunkCache       - cache shared by all the files, null for none
+	 * @param allocationPolicy - how the output files are reserved before they are downloaded
+	 */
+	BatchDownloadManager(List<BatchEntry> entries, int maxConnections, ChunkCache chunkCache,
+						 AllocationPolicy allocationPolicy) {
+		this.entries = entries;
+		this.maxConnections = maxConnections;
+		this.chunkCache = chunkCache;
+		this.allocationPolicy = allocationPolicy;
+	}
+
+	/**
+	 * @param listener - listener to notify on the progress and the state changes of every file of the batch
+	 */
+	public void addListener(DownloadListener listener) {
+		this.listeners.add(listener);
+	}
+
+	/**
+	 * Start the batch in the background. The files are probed and started on a thread of their own, only the workers
+	 * of the files run on the executor.
+	 *
+	 * @param executor - executor to run the workers of all the files on
+	 * @return handle of the running batch
+	 */
+	public BatchHandle start(Executor executor) {
+		Thread coordinator = new Thread(() -> {
+			try {
+				this.download(executor);
+				this.handle.finish(null);
+			} catch (Exception e) {
+				this.handle.finish(e);
+			}
+		}, "batch-coordinator");
+		coordinator.start();
+
+		return this.handle;
+	}
+
+	/**
+	 * Download the batch on threads of its own and block until it is done
+	 *
+	 * @return true if every file of the batch was downloaded
+	 * @throws InterruptedException
+	 */
+	public boolean run() throws InterruptedException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try {
+			this.start(executor).join();
+			return true;
+		} catch (Exception e) {
+			return false;
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @param executor - executor to run the workers of all the files on
+	 * @throws Exception if a file of the batch was not downloaded
+	 */
+	private void download(Executor executor) throws Exception {
+		ConnectionBudget connectionBudget = new ConnectionBudget(this.maxConnections);
+
+		int activeFiles = Math.min(MAX_ACTIVE_FILES, this.maxConnections);
+		int workersPerFile = Math.max(1, this.maxConnections / activeFiles);
+
+		// higher priority first, manifest order between files of the same priority
+		List<BatchEntry> ordered = new ArrayList<>(this.entries);
+		ordered.sort((a, b) -> b.getPriority() != a.getPriority() ?
+				Integer.compare(b.getPriority(), a.getPriority()) : Integer.compare(a.getOrder(), b.getOrder()));
+
+		ExecutorService probeExecutor = Executors.newFixedThreadPool(PROBE_THREADS);
+		ExecutorService downloadExecutor = Executors.newFixedThreadPool(activeFiles);
+
+		// number of files that may be probed ahead of the files that are being downloaded
+		Semaphore lookahead = new Semaphore(PROBE_LOOKAHEAD);
+
+		int started = 0;
+
+		for (BatchEntry entry : ordered) {
+			lookahead.acquire();
+
+			if (this.handle.isCancelRequested()) {
+				lookahead.release();
+				break;
+			}
+			started++;
+
+			// the probes take their connections from the budget of the workers
+			Future<DownloadMetadata> probe = probeExecutor.submit(() -> {
+				if (this.handle.isCancelRequested()) {
+					throw new CancellationException("Batch cancelled");
+				}
+
+				return new DownloadMetadata(entry.getUrls(), true, connectionBudget);
+			});
+
+			downloadExecutor.submit(() -> {
+				DownloadMetadata metadata;
+				try {
+					metadata = probe.get();
+				} catch (ExecutionException e) {
+					System.err.printf("Error while probing %s: %s\n", entry.getUrls()[0], e.getCause().getMessage());
+					this.failed.incrementAndGet();
+					return;
+				} catch (InterruptedException e) {
+					System.err.println("Interrupted while waiting for probe: " + e.getMessage());
+					this.failed.incrementAndGet();
+					return;
+				} finally {
+					lookahead.release();
+				}
+
+				DownloadManager downloadManager = new DownloadManager(metadata, workersPerFile, connectionBudget);
+				downloadManager.setChunkCache(this.chunkCache);
+				downloadManager.setAllocationPolicy(this.allocationPolicy);
+				downloadManager.addListener(new ConsoleProgressListener());
+				for (DownloadListener listener : this.listeners) {
+					downloadManager.addListener(listener);
+				}
+
+				// cancelling the batch cancels this file from now on
+				if (!this.handle.add(downloadManager.getHandle())) {
+					System.err.printf("Download of %s was cancelled\n", entry.getUrls()[0]);
+					this.failed.incrementAndGet();
+					return;
+				}
+
+				try {
+					downloadManager.start(executor).join();
+					this.succeeded.incrementAndGet();
+				} catch (CompletionException e) {
+					System.err.printf("Error while downloading %s: %s\n", entry.getUrls()[0], e.getCause().getMessage());
+					this.failed.incrementAndGet();
+				} catch (CancellationException e) {
+					System.err.printf("Download of %s was cancelled\n", entry.getUrls()[0]);
+					this.failed.incrementAndGet();
+				}
+			});
+		}
+
+		probeExecutor.shutdown();
+		downloadExecutor.shutdown();
+		downloadExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+		// files that were never started after the batch was cancelled
+		this.failed.addAndGet(ordered.size() - started);
+
+		System.out.printf("Batch finished: %d succeeded, %d failed\n", this.succeeded.get(), this.failed.get());
+
+		if (this.handle.isCancelRequested()) {
+			throw new IOException("Batch cancelled");
+		}
+
+		if (this.failed.get() > 0) {
+			throw new IOException(this.failed.get() + " of " + ordered.size() + " files failed");
+		}
+	}
+
+	/**
+	 * Parse a manifest file. Every line describes one file: an optional priority (higher is downloaded first)
+	 * followed by the urls of its mirrors, separated by whitespace. Empty lines and lines starting with # are skipped.
+	 *
+	 * @param path - path of the manifest file
+	 * @return the files listed in the manifest
+	 * @throws IOException
+	 */
+	public static List<BatchEntry> ParseManifest(String path) throws IOException {
+		List<BatchEntry> entries = new ArrayList<>();
+		Set<String> fileNames = new HashSet<>();
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String line;
+			int lineNumber = 0;
+
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] tokens = line.split("\\s+");
+				int priority = DEFAULT_PRIORITY;
+				int firstUrl = 0;
+
+				try {
+					priority = Integer.parseInt(tokens[0]);
+					firstUrl = 1;
+				} catch (NumberFormatException e) {
+					// no priority on this line
+				}
+
+				if (firstUrl >= tokens.length) {
+					throw new IOException("No urls on manifest line " + lineNumber);
+				}
+
+				String[] urls = new String[tokens.length - firstUrl];
+				for (int i = 0; i < urls.length; i++) {
+					urls[i] = tokens[firstUrl + i];
+					try {
+						new URL(urls[i]);
+					} catch (MalformedURLException e) {
+						throw new IOException("Invalid url on manifest line " + lineNumber + ": " + e.getMessage());
+					}
+				}
+
+				// two entries with the same name would write over the same file
+				String fileName = urls[0].substring(urls[0].lastIndexOf("/") + 1);
+				if (!fileNames.add(fileName)) {
+					System.err.printf("Skipping manifest line %d, %s is already in the batch\n", lineNumber, fileName);
+					continue;
+				}
+
+				entries.add(new BatchEntry(urls, priority, entries.size()));
+			}
+		}
+
+		return entries;
+	}
+
+	public int getSucceeded() {
+		return succeeded.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * A single file of the batch
+	 */
+	public static class BatchEntry {
+		private final String[] urls;
+		private final int priority;
+		private final int order;
+
+		/**
+		 * @param urls     - mirrors of the file
+		 * @param priority - priority of the file, higher is downloaded first
+		 * @param order    - position of the file in the manifest
+		 */
+		public BatchEntry(String[] urls, int priority, int order) {
+			this.urls = urls;
+			this.priority = priority;
+			this.order = order;
+		}
+
+		public String[] getUrls() {
+			return urls;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public int getOrder() {
+			return order;
+		}
+	}
+}
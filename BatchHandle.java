@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A batch that is running in the background. Completes when every file of the batch was downloaded, and
+ * exceptionally when a file failed or the batch was cancelled.
+ */
+public class BatchHandle extends CompletableFuture<Void> {
+
+	private final List<DownloadHandle> downloads = new ArrayList<>();
+	private boolean cancelRequested = false;
+
+	/**
+	 * Stop the batch, the files that are downloading are cancelled and the files that did not start are skipped.
+	 * The handle completes as cancelled right away, the downloads stop in the background.
+	 *
+	 * @param mayInterruptIfRunning - ignored, the downloads are always stopped
+	 * @return false if the batch already finished
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<DownloadHandle> started;
+
+		synchronized (this) {
+			if (this.isDone()) {
+				return false;
+			}
+
+			this.cancelRequested = true;
+			started = new ArrayList<>(this.downloads);
+		}
+
+		for (DownloadHandle download : started) {
+			download.cancel(false);
+		}
+
+		return super.cancel(false);
+	}
+
+	/**
+	 * The handle is completed only by its batch
+	 *
+	 * @return false
+	 */
+	@Override
+	public boolean complete(Void value) {
+		return false;
+	}
+
+	/**
+	 * The handle is completed only by its batch
+	 *
+	 * @return false
+	 */
+	@Override
+	public boolean completeExceptionally(Throwable ex) {
+		return false;
+	}
+
+	/**
+	 * @param download - handle of a file of the batch that is about to start, cancelled with the batch
+	 * @return false if the batch was cancelled, the download is then cancelled right away
+	 */
+	boolean add(DownloadHandle download) {
+		synchronized (this) {
+			if (!this.cancelRequested) {
+				this.downloads.add(download);
+				return true;
+			}
+		}
+
+		download.cancel(false);
+		return false;
+	}
+
+	synchronized boolean isCancelRequested() {
+		return this.cancelRequested;
+	}
+
+	/**
+	 * Complete the handle once every file of the batch stopped
+	 *
+	 * @param error - error of the batch, null if every file was downloaded
+	 */
+	void finish(Throwable error) {
+		if (error == null) {
+			super.complete(null);
+		} else if (!this.isCancelRequested()) {
+			super.completeExceptionally(error);
+		}
+	}
+
+	/**
+	 * @return handles of the files that started until now, in the order they started
+	 */
+	public synchronized List<DownloadHandle> getDownloads() {
+		return new ArrayList<>(this.downloads);
+	}
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers that are reused between the workers and the disk writer, and between downloads that share the pool
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+
+	private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooledBuffers = new AtomicInteger();
+
+	/**
+	 * @param bufferSize       - size of every buffer in the pool
+	 * @param maxPooledBuffers - maximum number of free buffers to keep, extra buffers are left to the GC
+	 */
+	public BufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @return a free buffer, a new one is allocated when the pool is empty
+	 */
+	public byte[] acquire() {
+		byte[] buffer = this.buffers.poll();
+		if (buffer == null) {
+			return new byte[this.bufferSize];
+		}
+
+		this.pooledBuffers.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer - buffer that is not used anymore
+	 */
+	public void release(byte[] buffer) {
+		if (buffer.length != this.bufferSize) {
+			return;
+		}
+
+		if (this.pooledBuffers.incrementAndGet() > this.maxPooledBuffers) {
+			this.pooledBuffers.decrementAndGet();
+			return;
+		}
+
+		this.buffers.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
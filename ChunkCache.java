@@ -0,0 +1,333 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cache of file chunks on the local disk, shared by all the downloads that use the same directory.
+ * <p>
+ * A chunk is an aligned range of CHUNK_SIZE bytes of a file. It is found by the url of the file, the validator of
+ * the file (ETag or Last-Modified) and its range, so a new version of the file never gets the chunks of an old one.
+ * The index maps that key to the name of the chunk file. With deduplication the chunk file is named by the hash of
+ * its content, so equal chunks of different urls are kept once. When the cache grows over its size the chunks that
+ * were used least recently are deleted.
+ */
+public class ChunkCache {
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024 * 1024;
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final String INDEX_FOLDER = "index";
+	private static final String CHUNKS_FOLDER = "chunks";
+
+	private final Path indexPath;
+	private final Path chunksPath;
+	private final long maxBytes;
+	private final boolean deduplicate;
+
+	/**
+	 * @param directory   - directory of the cache, created if needed
+	 * @param maxBytes    - size of the chunks to keep at most
+	 * @param deduplicate - true to keep equal chunks once, costs a hash of every stored chunk
+	 * @throws IOException
+	 */
+	public ChunkCache(File directory, long maxBytes, boolean deduplicate) throws IOException {
+		this.indexPath = directory.toPath().resolve(INDEX_FOLDER);
+		this.chunksPath = directory.toPath().resolve(CHUNKS_FOLDER);
+		this.maxBytes = maxBytes;
+		this.deduplicate = deduplicate;
+
+		Files.createDirectories(this.indexPath);
+		Files.createDirectories(this.chunksPath);
+	}
+
+	/**
+	 * Copy the cached chunks of the missing ranges into the output file, without reading them into memory
+	 *
+	 * @param metadata - metadata of the download, the copied bytes are added to it
+	 * @param segments - segments that are left to download
+	 * @return the segments that are still left to download after the copy
+	 * @throws IOException
+	 */
+	public List<Segment> fill(DownloadMetadata metadata, List<Segment> segments) throws IOException {
+		String validator = metadata.getValidator();
+		if (validator == null) {
+			return segments;
+		}
+
+		// merge neighbours first, a chunk is usually larger than a single segment
+		List<Segment> missing = new ArrayList<>();
+		for (Segment segment : segments) {
+			if (segment.getStartIndex() < segment.getEndIndex()) {
+				missing.add(segment);
+			}
+		}
+
+		List<Segment> remaining = new ArrayList<>();
+		long filled = 0L;
+
+		try (FileChannel output = FileChannel.open(new File(metadata.getFileName()).toPath(),
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+
+			for (Segment segment : Segment.CompressSegments(missing)) {
+				long start = segment.getStartIndex();
+				long end = segment.getEndIndex();
+				long missingStart = start;
+
+				// only whole chunks are cached, so start from the first chunk that begins inside the segment
+				long chunkStart = ((start + CHUNK_SIZE - 1) / CHUNK_SIZE) * CHUNK_SIZE;
+				for (; chunkStart < end; chunkStart += CHUNK_SIZE) {
+					long chunkEnd = Math.min(chunkStart + CHUNK_SIZE, metadata.getFileSize());
+					if (chunkEnd > end) {
+						break;
+					}
+
+					String key = Key(metadata.getUrls()[0], validator, chunkStart, chunkEnd);
+					if (this.copyChunk(key, output, chunkStart, chunkEnd - chunkStart)) {
+						if (missingStart < chunkStart) {
+							remaining.add(new Segment(missingStart, chunkStart));
+						}
+
+						missingStart = chunkEnd;
+						filled += chunkEnd - chunkStart;
+					}
+				}
+
+				if (missingStart == start) {
+					remaining.add(segment);
+				} else if (missingStart < end) {
+					remaining.add(new Segment(missingStart, end));
+				}
+			}
+		}
+
+		if (filled == 0) {
+			return segments;
+		}
+
+		System.out.printf("Copied %d bytes from the chunk cache\n", filled);
+		metadata.addBytesRead(filled);
+
+		return remaining;
+	}
+
+	/**
+	 * Keep the chunks of a file that was fully downloaded. Chunks that are already in the cache, like the ones fill()
+	 * copied, are neither read nor hashed again.
+	 *
+	 * @param metadata - metadata of the download
+	 * @throws IOException
+	 */
+	public synchronized void store(DownloadMetadata metadata) throws IOException {
+		String validator = metadata.getValidator();
+		if (validator == null || metadata.getFileSize() > this.maxBytes) {
+			return;
+		}
+
+		ByteBuffer buffer = this.deduplicate ? ByteBuffer.allocateDirect(CHUNK_SIZE) : null;
+
+		try (FileChannel file = FileChannel.open(new File(metadata.getFileName()).toPath(), StandardOpenOption.READ)) {
+			for (long chunkStart = 0; chunkStart < metadata.getFileSize(); chunkStart += CHUNK_SIZE) {
+				long length = Math.min(CHUNK_SIZE, metadata.getFileSize() - chunkStart);
+				String key = Key(metadata.getUrls()[0], validator, chunkStart, chunkStart + length);
+
+				if (this.findChunk(key, length) != null) {
+					continue;
+				}
+
+				String name = this.deduplicate ? Hash(file, buffer, chunkStart, length) : key;
+				Path chunk = this.chunksPath.resolve(name);
+
+				if (Files.exists(chunk)) {
+					chunk.toFile().setLastModified(System.currentTimeMillis());
+				} else {
+					Path temp = this.chunksPath.resolve(name + ".tmp");
+					try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+							StandardOpenOption.TRUNCATE_EXISTING)) {
+						Transfer(file, chunkStart, length, out);
+					}
+					Files.move(temp, chunk, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+
+				Path tempIndex = this.indexPath.resolve(key + ".tmp");
+				Files.write(tempIndex, name.getBytes(StandardCharsets.UTF_8));
+				Files.move(tempIndex, this.indexPath.resolve(key), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+		this.evict();
+	}
+
+	/**
+	 * @param key    - key of the chunk
+	 * @param output - file to copy the chunk into
+	 * @param seek   - where in the file to copy the chunk
+	 * @param length - length of the chunk
+	 * @return true if the chunk was in the cache and was copied
+	 * @throws IOException
+	 */
+	private boolean copyChunk(String key, FileChannel output, long seek, long length) throws IOException {
+		Path chunk = this.findChunk(key, length);
+		if (chunk == null) {
+			return false;
+		}
+
+		try (FileChannel in = FileChannel.open(chunk, StandardOpenOption.READ)) {
+			output.position(seek);
+			Transfer(in, 0, length, output);
+		} catch (IOException e) {
+			// evicted by another download in the meantime
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @param key    - key of the chunk
+	 * @param length - expected length of the chunk
+	 * @return path of the chunk, null if it is not in the cache. A found chunk is marked as used.
+	 */
+	private Path findChunk(String key, long length) {
+		Path index = this.indexPath.resolve(key);
+
+		try {
+			String name = new String(Files.readAllBytes(index), StandardCharsets.UTF_8);
+			Path chunk = this.chunksPath.resolve(name);
+
+			if (Files.size(chunk) != length) {
+				Files.deleteIfExists(index);
+				return null;
+			}
+
+			chunk.toFile().setLastModified(System.currentTimeMillis());
+			return chunk;
+		} catch (IOException e) {
+			// a missing index, or an index of a chunk that was evicted
+			try {
+				Files.deleteIfExists(index);
+			} catch (IOException ignored) {
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Delete the least recently used chunks until the cache is not larger than its size
+	 */
+	private void evict() {
+		File[] chunks = this.chunksPath.toFile().listFiles();
+		if (chunks == null) {
+			return;
+		}
+
+		long total = 0L;
+		for (File chunk : chunks) {
+			total += chunk.length();
+		}
+
+		if (total <= this.maxBytes) {
+			return;
+		}
+
+		Arrays.sort(chunks, Comparator.comparingLong(File::lastModified));
+
+		for (File chunk : chunks) {
+			if (total <= this.maxBytes) {
+				break;
+			}
+
+			long length = chunk.length();
+			if (chunk.delete()) {
+				total -= length;
+			}
+		}
+
+		this.sweepIndex();
+	}
+
+	/**
+	 * Delete the index entries of chunks that were evicted, so the index does not grow without the chunks
+	 */
+	private void sweepIndex() {
+		File[] entries = this.indexPath.toFile().listFiles();
+		if (entries == null) {
+			return;
+		}
+
+		for (File entry : entries) {
+			try {
+				String name = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.UTF_8);
+				if (!Files.exists(this.chunksPath.resolve(name))) {
+					Files.deleteIfExists(entry.toPath());
+				}
+			} catch (IOException e) {
+				// removed by a lookup in the meantime
+			}
+		}
+	}
+
+	/**
+	 * Copy a range between files, the kernel copies the data when it can
+	 */
+	private static void Transfer(FileChannel from, long position, long length, FileChannel to) throws IOException {
+		long transferred = 0L;
+
+		while (transferred < length) {
+			long count = from.transferTo(position + transferred, length - transferred, to);
+			if (count <= 0) {
+				throw new IOException("Chunk ended before " + length + " bytes were copied");
+			}
+			transferred += count;
+		}
+	}
+
+	private static String Hash(FileChannel file, ByteBuffer buffer, long position, long length) throws IOException {
+		MessageDigest digest = Digest();
+
+		buffer.clear();
+		buffer.limit((int) length);
+		while (buffer.hasRemaining()) {
+			if (file.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("File ended before the chunk at " + position);
+			}
+		}
+
+		buffer.flip();
+		digest.update(buffer);
+
+		return Hex(digest.digest());
+	}
+
+	private static String Key(String url, String validator, long start, long end) {
+		String key = url + "\n" + validator + "\n" + start + "-" + end;
+		return Hex(Digest().digest(key.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static MessageDigest Digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String Hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+
+		return hex.toString();
+	}
+}
@@ -0,0 +1,51 @@
+import java.util.concurrent.Semaphore;
+
+/**
+ * A global limit on the number of open connections, shared by all the workers of all the downloads
+ */
+public class ConnectionBudget {
+
+	private final int maxConnections;
+	private final Semaphore permits;
+
+	/**
+	 * @param maxConnections - maximum number of connections that may be open at the same time
+	 */
+	public ConnectionBudget(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("Connection budget must be at least 1");
+		}
+
+		this.maxConnections = maxConnections;
+
+		// fair, so a worker of one file can't starve the workers of another file
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * Block until a connection may be opened
+	 *
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		this.permits.acquire();
+	}
+
+	/**
+	 * Return a connection to the budget
+	 */
+	public void release() {
+		this.permits.release();
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * @return number of connections that are currently open
+	 */
+	public int getActiveConnections() {
+		return this.maxConnections - this.permits.availablePermits();
+	}
+}
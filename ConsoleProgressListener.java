@@ -0,0 +1,31 @@
+/**
+ * Prints the percentage of the download whenever it changes
+ */
+public class ConsoleProgressListener implements DownloadListener {
+
+	private int lastReportedPercentage = -1; // unique initial value
+
+	@Override
+	public synchronized void onProgress(DownloadHandle handle, long bytesRead, long fileSize) {
+		int newPercentage = getDownloadPercentage(bytesRead, fileSize);
+		if (newPercentage != lastReportedPercentage) {
+			System.out.printf("Downloaded %d%%\n", newPercentage);
+		}
+
+		lastReportedPercentage = newPercentage;
+	}
+
+	/**
+	 * @param completed - number of bytes that were downloaded
+	 * @param fileSize  - size of the file
+	 * @return the percentage that was downloaded until now
+	 */
+	private static int getDownloadPercentage(long completed, long fileSize) {
+		if (fileSize <= 0) {
+			return 100;
+		}
+
+		// Calculate the percentage given completed and file size.
+		return (int) (0.5d + ((double) completed / (double) fileSize) * 100);
+	}
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file while it is downloading. Ranges that are already on disk are read right away, a read of a missing
+ * range asks the scheduler to download it first and blocks until it is written.
+ */
+public class DownloadChannel implements SeekableByteChannel {
+
+	private final FileChannel file;
+	private final SegmentScheduler scheduler;
+	private final long size;
+
+	private long position = 0L;
+
+	/**
+	 * @param fileName  - path of the file that is downloading
+	 * @param size      - size of the whole file
+	 * @param scheduler - scheduler of the download
+	 * @throws IOException
+	 */
+	public DownloadChannel(String fileName, long size, SegmentScheduler scheduler) throws IOException {
+		this.file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		this.size = size;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Read from the current position, returns only the bytes that are written, so it may read less than asked
+	 *
+	 * @param dst - buffer to read into
+	 * @return number of bytes read, -1 at the end of the file
+	 * @throws IOException if the download stopped before the data at the position was written
+	 */
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		if (!this.file.isOpen()) {
+			throw new ClosedChannelException();
+		}
+
+		if (this.position >= this.size) {
+			return -1;
+		}
+
+		long wanted = Math.min(dst.remaining(), this.size - this.position);
+		if (wanted == 0) {
+			return 0;
+		}
+
+		long written;
+		try {
+			written = this.scheduler.awaitWritten(this.position, wanted);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the download: " + e.getMessage());
+		}
+
+		if (written == 0) {
+			throw new IOException("Download stopped before position " + this.position + " was written");
+		}
+
+		// read only what is written, the rest of the buffer may still be empty on disk
+		ByteBuffer view = dst.duplicate();
+		view.limit(view.position() + (int) Math.min(wanted, written));
+
+		int read = this.file.read(view, this.position);
+		if (read > 0) {
+			dst.position(dst.position() + read);
+			this.position += read;
+		}
+
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() {
+		return this.position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) {
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Position must not be negative");
+		}
+
+		this.position = newPosition;
+		return this;
+	}
+
+	/**
+	 * @return size of the whole file, also while it is downloading
+	 */
+	@Override
+	public long size() {
+		return this.size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return this.file.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.file.close();
+	}
+}
@@ -0,0 +1,513 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stays resident and downloads the jobs it receives on a local HTTP control interface.
+ * All the jobs share one executor, one buffer pool and one connection budget, and the JVM keeps the connections,
+ * the DNS lookups and the TLS sessions of every origin warm between jobs.
+ * <p>
+ * Every request must carry "Authorization: Bearer TOKEN", the token is made at startup and written to a file only
+ * the user can read. Requests with an Origin header (made by a web page) or with a Host that is not the loopback
+ * interface (DNS rebinding) are rejected.
+ * <p>
+ * POST /jobs?workers=N         body has the urls of the file, one per line, returns the id of the new job
+ * GET  /jobs                   status of all the jobs
+ * GET  /jobs/ID                status of a job
+ * POST /jobs/ID/pause|resume|cancel
+ * GET  /metrics                counters of the daemon
+ */
+public class DownloadDaemon {
+	private static final int CONTROL_THREADS = 2;
+	private static final int DEFAULT_WORKERS_PER_JOB = 4;
+	private static final int MAX_REQUEST_BODY = 64 * 1024;
+	private static final String DNS_CACHE_TTL_SECONDS = "300";
+	private static final String DNS_NEGATIVE_CACHE_TTL_SECONDS = "10";
+	private static final int TLS_SESSION_CACHE_SIZE = 1024;
+	private static final int TLS_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+	private static final int TOKEN_BYTES = 32;
+	private static final String TOKEN_FILE_NAME = ".idcdm-daemon.token";
+	private static final long FINISHED_JOB_RETENTION_MILLISECONDS = 60 * 60 * 1000;
+	private static final int MAX_FINISHED_JOBS = 100;
+
+	private final ConnectionBudget connectionBudget;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final ExecutorService controlExecutor = Executors.newFixedThreadPool(CONTROL_THREADS);
+	private final Map<Long, Job> jobs = new ConcurrentSkipListMap<>();
+	private final AtomicLong nextJobId = new AtomicLong(1);
+	private final long startTime = System.currentTimeMillis();
+
+	private ChunkCache chunkCache;
+	private AllocationPolicy allocationPolicy = AllocationPolicy.SPARSE;
+	private HttpServer server;
+	private byte[] token;
+	private int port;
+
+	/**
+	 * @param maxConnections - maximum number of connections to open at the same time, for all the jobs together
+	 */
+	DownloadDaemon(int maxConnections) {
+		this.connectionBudget = new ConnectionBudget(maxConnections);
+		ConfigureConnectionCaches(maxConnections);
+	}
+
+	/**
+	 * Keep connections, DNS lookups and TLS sessions between jobs. Must run before the first connection is opened.
+	 *
+	 * @param maxConnections - maximum number of connections that may be kept alive to a single origin
+	 */
+	private static void ConfigureConnectionCaches(int maxConnections) {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+
+		Security.setProperty("networkaddress.cache.ttl", DNS_CACHE_TTL_SECONDS);
+		Security.setProperty("networkaddress.cache.negative.ttl", DNS_NEGATIVE_CACHE_TTL_SECONDS);
+
+		try {
+			SSLSessionContext sessionContext = SSLContext.getDefault().getClientSessionContext();
+			sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+			sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("Can't configure the TLS session cache: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param chunkCache - cache shared by all the jobs, null for none
+	 */
+	public void setChunkCache(ChunkCache chunkCache) {
+		this.chunkCache = chunkCache;
+	}
+
+	/**
+	 * @param allocationPolicy - how the output files of the jobs are reserved before they are downloaded
+	 */
+	public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+		this.allocationPolicy = allocationPolicy;
+	}
+
+	/**
+	 * Start listening on the loopback interface
+	 *
+	 * @param port - port to listen on
+	 * @throws IOException
+	 */
+	public void start(int port) throws IOException {
+		this.token = this.writeToken();
+
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		this.port = this.server.getAddress().getPort();
+		this.server.createContext("/jobs", exchange -> this.handleAuthorized(exchange, this::handleJobs));
+		this.server.createContext("/metrics", exchange -> this.handleAuthorized(exchange, this::handleMetrics));
+		this.server.setExecutor(this.controlExecutor);
+		this.server.start();
+
+		System.out.printf("Daemon listening on %s:%d\n", this.server.getAddress().getHostString(), this.port);
+	}
+
+	/**
+	 * Make a new token and write it to a file that only the user can read
+	 *
+	 * @return the token
+	 * @throws IOException
+	 */
+	private byte[] writeToken() throws IOException {
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : random) {
+			hex.append(String.format("%02x", b));
+		}
+
+		Path path = Paths.get(System.getProperty("user.home"), TOKEN_FILE_NAME);
+		Files.deleteIfExists(path);
+
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system, keep it to the owner as far as it allows
+			File file = Files.createFile(path).toFile();
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+
+		Files.write(path, hex.toString().getBytes(StandardCharsets.US_ASCII));
+		System.out.println("Daemon token written to " + path);
+
+		return hex.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Pass the request to the handler only if it has the token and came from a local client, not from a web page
+	 *
+	 * @param exchange - the request
+	 * @param handler  - handler of the request
+	 * @throws IOException
+	 */
+	private void handleAuthorized(HttpExchange exchange, HttpHandler handler) throws IOException {
+		try {
+			if (exchange.getRequestHeaders().containsKey("Origin")) {
+				Send(exchange, 403, Error("Requests from web pages are not allowed"));
+				return;
+			}
+
+			if (!this.isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+				Send(exchange, 403, Error("Host must be the loopback interface"));
+				return;
+			}
+
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			byte[] token = authorization != null && authorization.startsWith("Bearer ") ?
+					authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+
+			// constant time, so the token can't be guessed byte by byte
+			if (!MessageDigest.isEqual(token, this.token)) {
+				Send(exchange, 401, Error("Missing or wrong token"));
+				return;
+			}
+
+			handler.handle(exchange);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @param host - Host header of a request
+	 * @return true if the request was sent to the loopback interface and port of the daemon
+	 */
+	private boolean isLoopbackHost(String host) {
+		if (host == null) {
+			return false;
+		}
+
+		for (String name : new String[]{"127.0.0.1", "localhost", "[::1]"}) {
+			if (host.equalsIgnoreCase(name) || host.equalsIgnoreCase(name + ":" + this.port)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stop accepting jobs, running jobs are cancelled and can be resumed later from their metadata
+	 */
+	public void stop() {
+		if (this.server != null) {
+			this.server.stop(0);
+		}
+
+		for (Job job : this.jobs.values()) {
+			job.handle.cancel(true);
+		}
+
+		this.controlExecutor.shutdown();
+		this.executor.shutdown();
+	}
+
+	/**
+	 * @param urls         - mirrors of the file
+	 * @param numOfWorkers - number of workers to use
+	 * @return the new job
+	 * @throws IllegalStateException if another job still writes a file with the same name
+	 */
+	public synchronized Job submit(String[] urls, int numOfWorkers) {
+		this.pruneJobs();
+
+		// two jobs with the same name would write over the same file and metadata
+		String fileName = urls[0].substring(urls[0].lastIndexOf("/") + 1);
+		for (Job job : this.jobs.values()) {
+			if (!job.downloadManager.isStopped() && job.fileName.equals(fileName)) {
+				throw new IllegalStateException("Job " + job.id + " is already downloading " + fileName);
+			}
+		}
+
+		long id = this.nextJobId.getAndIncrement();
+
+		DownloadManager downloadManager = new DownloadManager(urls, numOfWorkers, this.connectionBudget);
+		downloadManager.setChunkCache(this.chunkCache);
+		downloadManager.setAllocationPolicy(this.allocationPolicy);
+		Job job = new Job(id, urls, fileName, downloadManager);
+		this.jobs.put(id, job);
+
+		downloadManager.start(this.executor);
+		System.out.printf("Job %d started: %s\n", id, urls[0]);
+
+		return job;
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		try {
+			String[] path = exchange.getRequestURI().getPath().split("/");
+			String method = exchange.getRequestMethod();
+
+			// path is "", "jobs", [id], [action]
+			this.pruneJobs();
+
+			if (path.length == 2 && method.equals("POST")) {
+				this.createJob(exchange);
+			} else if (path.length == 2 && method.equals("GET")) {
+				List<String> statuses = new ArrayList<>();
+				for (Job job : this.jobs.values()) {
+					statuses.add(job.toJson());
+				}
+				Send(exchange, 200, "[" + String.join(",", statuses) + "]");
+			} else if (path.length == 3 || path.length == 4) {
+				Job job = this.jobs.get(Long.parseLong(path[2]));
+				if (job == null) {
+					Send(exchange, 404, Error("No such job"));
+				} else if (path.length == 3 && method.equals("GET")) {
+					Send(exchange, 200, job.toJson());
+				} else if (path.length == 4 && method.equals("POST")) {
+					this.controlJob(exchange, job, path[3]);
+				} else {
+					Send(exchange, 405, Error("Method not allowed"));
+				}
+			} else {
+				Send(exchange, 404, Error("Not found"));
+			}
+		} catch (NumberFormatException e) {
+			Send(exchange, 400, Error("Invalid number: " + e.getMessage()));
+		}
+	}
+
+	private void createJob(HttpExchange exchange) throws IOException {
+		int numOfWorkers = DEFAULT_WORKERS_PER_JOB;
+		String query = exchange.getRequestURI().getQuery();
+		if (query != null && query.startsWith("workers=")) {
+			numOfWorkers = Integer.parseInt(query.substring("workers=".length()));
+		}
+
+		List<String> urls = new ArrayList<>();
+		for (String line : ReadBody(exchange).split("\n")) {
+			line = line.trim();
+			if (line.isEmpty()) {
+				continue;
+			}
+
+			try {
+				new URL(line);
+			} catch (MalformedURLException e) {
+				Send(exchange, 400, Error("Invalid url: " + e.getMessage()));
+				return;
+			}
+			urls.add(line);
+		}
+
+		if (urls.isEmpty() || numOfWorkers < 1) {
+			Send(exchange, 400, Error("A job needs at least one url and one worker"));
+			return;
+		}
+
+		Job job;
+		try {
+			job = this.submit(urls.toArray(new String[]{}), numOfWorkers);
+		} catch (IllegalStateException e) {
+			Send(exchange, 409, Error(e.getMessage()));
+			return;
+		}
+		Send(exchange, 201, job.toJson());
+	}
+
+	private void controlJob(HttpExchange exchange, Job job, String action) throws IOException {
+		switch (action) {
+			case "pause":
+				job.handle.pause();
+				break;
+			case "resume":
+				job.handle.resume();
+				break;
+			case "cancel":
+				job.handle.cancel(true);
+				break;
+			default:
+				Send(exchange, 404, Error("Unknown action: " + action));
+				return;
+		}
+
+		Send(exchange, 200, job.toJson());
+	}
+
+	/**
+	 * Forget the jobs that finished more than the retention ago, and the oldest finished jobs above the maximum
+	 */
+	private synchronized void pruneJobs() {
+		long now = System.currentTimeMillis();
+		List<Job> finished = new ArrayList<>();
+
+		for (Job job : this.jobs.values()) {
+			if (job.finishedAt > 0 && job.downloadManager.isStopped()) {
+				finished.add(job);
+			}
+		}
+
+		// jobs are in id order, so the oldest come first
+		for (int i = 0; i < finished.size(); i++) {
+			Job job = finished.get(i);
+			if (now - job.finishedAt > FINISHED_JOB_RETENTION_MILLISECONDS || finished.size() - i > MAX_FINISHED_JOBS) {
+				this.jobs.remove(job.id);
+			}
+		}
+	}
+
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		Map<DownloadHandle.State, Integer> jobsByState = new EnumMap<>(DownloadHandle.State.class);
+		for (DownloadHandle.State state : DownloadHandle.State.values()) {
+			jobsByState.put(state, 0);
+		}
+
+		long bytesRead = 0L;
+		for (Job job : this.jobs.values()) {
+			jobsByState.merge(job.handle.getState(), 1, Integer::sum);
+			bytesRead += job.handle.getBytesRead();
+		}
+
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"uptimeSeconds\":").append((System.currentTimeMillis() - this.startTime) / 1000);
+		json.append(",\"jobs\":").append(this.jobs.size());
+		for (Map.Entry<DownloadHandle.State, Integer> entry : jobsByState.entrySet()) {
+			json.append(",\"jobs").append(entry.getKey()).append("\":").append(entry.getValue());
+		}
+		json.append(",\"bytesRead\":").append(bytesRead);
+		json.append(",\"activeConnections\":").append(this.connectionBudget.getActiveConnections());
+		json.append(",\"maxConnections\":").append(this.connectionBudget.getMaxConnections());
+		json.append("}");
+
+		Send(exchange, 200, json.toString());
+	}
+
+	private static String ReadBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int len;
+
+		try (InputStream in = exchange.getRequestBody()) {
+			while ((len = in.read(buffer)) != -1) {
+				if (body.size() + len > MAX_REQUEST_BODY) {
+					throw new IOException("Request body is too large");
+				}
+				body.write(buffer, 0, len);
+			}
+		}
+
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void Send(HttpExchange exchange, int code, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(code, body.length);
+
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static String Error(String message) {
+		return "{\"error\":" + Quote(message) + "}";
+	}
+
+	private static String Quote(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * A download that was submitted to the daemon
+	 */
+	public static class Job {
+		private final long id;
+		private final String[] urls;
+		private final String fileName;
+		private final DownloadManager downloadManager;
+		private final DownloadHandle handle;
+		private volatile Throwable error;
+		private volatile long finishedAt = 0L;
+
+		/**
+		 * @param id              - id of the job
+		 * @param urls            - mirrors of the file
+		 * @param fileName        - name of the output file
+		 * @param downloadManager - manager of the download
+		 */
+		Job(long id, String[] urls, String fileName, DownloadManager downloadManager) {
+			this.id = id;
+			this.urls = urls;
+			this.fileName = fileName;
+			this.downloadManager = downloadManager;
+			this.handle = downloadManager.getHandle();
+
+			this.handle.whenComplete((metadata, error) -> {
+				this.error = error;
+				this.finishedAt = System.currentTimeMillis();
+			});
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public DownloadHandle getHandle() {
+			return handle;
+		}
+
+		String toJson() {
+			StringBuilder json = new StringBuilder("{");
+			json.append("\"id\":").append(this.id);
+			json.append(",\"url\":").append(Quote(this.urls[0]));
+			json.append(",\"state\":").append(Quote(this.handle.getState().toString()));
+			json.append(",\"bytesRead\":").append(this.handle.getBytesRead());
+			json.append(",\"fileSize\":").append(this.handle.getFileSize());
+
+			Throwable error = this.error;
+			if (error != null && error.getMessage() != null) {
+				json.append(",\"error\":").append(Quote(error.getMessage()));
+			}
+
+			return json.append("}").toString();
+		}
+	}
+}
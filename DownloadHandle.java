@@ -0,0 +1,223 @@
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A download that is running in the background. Completes with the metadata of the file when the whole file
+ * was downloaded, and exceptionally when the download failed or was cancelled.
+ */
+public class DownloadHandle extends CompletableFuture<DownloadMetadata> {
+
+	/**
+	 * The state of the download
+	 */
+	public enum State {
+		PROBING,
+		DOWNLOADING,
+		PAUSED,
+		SUCCEEDED,
+		FAILED,
+		CANCELLED,
+	}
+
+	private final List<DownloadListener> listeners = new CopyOnWriteArrayList<>();
+
+	private State state = State.PROBING;
+	private boolean paused = false;
+	private boolean cancelRequested = false;
+
+	private volatile long bytesRead = 0L;
+	private volatile long fileSize = 0L;
+	private volatile Throwable error;
+
+	/**
+	 * @param listener - listener to notify on progress and on state changes
+	 */
+	public void addListener(DownloadListener listener) {
+		this.listeners.add(listener);
+	}
+
+	public void removeListener(DownloadListener listener) {
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Stop downloading new data until resume is called, connections are closed while paused
+	 */
+	public void pause() {
+		synchronized (this) {
+			if (this.isFinished()) {
+				return;
+			}
+
+			this.paused = true;
+		}
+
+		this.setState(State.PAUSED);
+	}
+
+	/**
+	 * Continue a paused download
+	 */
+	public void resume() {
+		synchronized (this) {
+			if (this.isFinished() || !this.paused) {
+				return;
+			}
+
+			this.paused = false;
+			this.notifyAll();
+		}
+
+		this.setState(this.fileSize > 0 ? State.DOWNLOADING : State.PROBING);
+	}
+
+	/**
+	 * Stop the download, the data that was downloaded and the metadata stay on disk so the download can be resumed
+	 * later. The handle completes as cancelled right away, the workers stop in the background.
+	 *
+	 * @param mayInterruptIfRunning - ignored, the workers are always stopped
+	 * @return false if the download already finished
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (this.isFinished()) {
+				return false;
+			}
+
+			this.cancelRequested = true;
+			this.notifyAll();
+		}
+
+		this.setState(State.CANCELLED);
+		return super.cancel(false);
+	}
+
+	/**
+	 * The handle is completed only by its download
+	 *
+	 * @return false
+	 */
+	@Override
+	public boolean complete(DownloadMetadata value) {
+		return false;
+	}
+
+	/**
+	 * The handle is completed only by its download
+	 *
+	 * @return false
+	 */
+	@Override
+	public boolean completeExceptionally(Throwable ex) {
+		return false;
+	}
+
+	/**
+	 * Block while the download is paused
+	 *
+	 * @return false if the download was cancelled
+	 * @throws InterruptedException
+	 */
+	synchronized boolean awaitRunning() throws InterruptedException {
+		while (this.paused && !this.cancelRequested) {
+			this.wait();
+		}
+
+		return !this.cancelRequested;
+	}
+
+	/**
+	 * @return true if the workers should keep downloading
+	 */
+	synchronized boolean isRunning() {
+		return !this.paused && !this.cancelRequested;
+	}
+
+	synchronized boolean isCancelRequested() {
+		return this.cancelRequested;
+	}
+
+	/**
+	 * @param bytesRead - number of bytes that were written to disk until now
+	 * @param fileSize  - size of the whole file
+	 */
+	void setProgress(long bytesRead, long fileSize) {
+		this.bytesRead = bytesRead;
+		this.fileSize = fileSize;
+
+		for (DownloadListener listener : this.listeners) {
+			listener.onProgress(this, bytesRead, fileSize);
+		}
+	}
+
+	/**
+	 * @param state - the new state, a paused download stays paused until resume is called
+	 */
+	void setState(State state) {
+		synchronized (this) {
+			if (this.isFinished()) {
+				return;
+			}
+
+			if (this.paused && (state == State.PROBING || state == State.DOWNLOADING)) {
+				state = State.PAUSED;
+			}
+
+			if (this.state == state) {
+				return;
+			}
+
+			this.state = state;
+		}
+
+		for (DownloadListener listener : this.listeners) {
+			listener.onStateChanged(this, state);
+		}
+	}
+
+	/**
+	 * Complete the handle once the download stopped
+	 *
+	 * @param metadata - metadata of the download
+	 * @param error    - error that stopped the download, null if the download succeeded
+	 */
+	void finish(DownloadMetadata metadata, Throwable error) {
+		this.error = error;
+
+		if (error == null) {
+			this.setState(State.SUCCEEDED);
+			super.complete(metadata);
+		} else if (this.isCancelRequested()) {
+			this.setState(State.CANCELLED);
+			super.cancel(false);
+		} else {
+			this.setState(State.FAILED);
+			super.completeExceptionally(error);
+		}
+	}
+
+	private synchronized boolean isFinished() {
+		return this.state == State.SUCCEEDED || this.state == State.FAILED || this.state == State.CANCELLED;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @return the error that stopped the download, null while it runs or if it succeeded
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * Receives the progress of a download, the methods are called from the threads of the download
+ * and should return quickly
+ */
+public interface DownloadListener {
+
+	/**
+	 * @param handle    - the download that made progress
+	 * @param bytesRead - number of bytes that were written to disk until now
+	 * @param fileSize  - size of the whole file
+	 */
+	default void onProgress(DownloadHandle handle, long bytesRead, long fileSize) {
+	}
+
+	/**
+	 * @param handle - the download that changed its state
+	 * @param state  - the new state of the download
+	 */
+	default void onStateChanged(DownloadHandle handle, DownloadHandle.State state) {
+	}
+}
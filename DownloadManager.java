@@ -1,124 +1,478 @@
 
 
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 public class DownloadManager {
 	private final static int POLL_TIMEOUT_SECONDS = 1;
-	private final static int DOWNLOAD_PERCENTAGE_INTERVAL_MILLISECONDS = 500;
 	private static final int QUEUE_CAPACITY = 16 * 1024 * 1024;
 	private static final int MINIMUM_FILE_SIZE_TO_USE_THREADS = 1024 * 1024;
 	private static final int THREADS_TO_USE_ON_SMALL_FILE = 1;
 	private final static long SEGMENT_SIZE = 4 * 1024;
+	private final static int BUFFER_SIZE = 256 * 1024;
+	private final static int MAX_POOLED_BUFFERS = 64;
+	private final static long SEQUENTIAL_SEGMENT_SIZE = 1024 * 1024;
+	private final static int SEQUENTIAL_WINDOW_SEGMENTS = 2; // per worker
+	private final static long RANDOM_ACCESS_SEGMENT_SIZE = 1024 * 1024;
+	private final static int MAX_RESTARTS = 2;
+	private final static long SERIALIZE_INTERVAL_NANOSECONDS = TimeUnit.SECONDS.toNanos(1);
+
+	private final static BufferPool DEFAULT_BUFFER_POOL = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+	private String[] urls;
+	private int numOfWorkers;
+	private ConnectionBudget connectionBudget;
+	private BufferPool bufferPool = DEFAULT_BUFFER_POOL;
+	private WritableByteChannel sequentialOutput;
+	private boolean randomAccess = false;
+	private ChunkCache chunkCache;
+	private AllocationPolicy allocationPolicy = AllocationPolicy.SPARSE;
+	private SegmentTracer tracer;
+	private final CompletableFuture<SegmentScheduler> writing = new CompletableFuture<>();
 
 	private DownloadMetadata metadata;
 	private DownloadWorker[] downloadWorkers;
+	private int restarts = 0;
+	private volatile boolean stopped = false;
+	private final DownloadHandle handle = new DownloadHandle();
 
 	/**
 	 * @param urls         list of urls to download from
 	 * @param numOfWorkers number of workers to use (threads)
-	 * @throws Exception
 	 */
-	DownloadManager(String[] urls, int numOfWorkers) throws Exception {
+	DownloadManager(String[] urls, int numOfWorkers) {
+		this(urls, null, numOfWorkers, new ConnectionBudget(numOfWorkers));
+	}
+
+	/**
+	 * @param urls             list of urls to download from
+	 * @param numOfWorkers     number of workers to use (threads)
+	 * @param connectionBudget budget of connections shared with other downloads
+	 */
+	DownloadManager(String[] urls, int numOfWorkers, ConnectionBudget connectionBudget) {
+		this(urls, null, numOfWorkers, connectionBudget);
+	}
+
+	/**
+	 * @param metadata         metadata of the file to download, already fetched from the server
+	 * @param numOfWorkers     number of workers to use (threads)
+	 * @param connectionBudget budget of connections shared with other downloads
+	 */
+	DownloadManager(DownloadMetadata metadata, int numOfWorkers, ConnectionBudget connectionBudget) {
+		this(metadata.getUrls(), metadata, numOfWorkers, connectionBudget);
+	}
+
+	private DownloadManager(String[] urls, DownloadMetadata metadata, int numOfWorkers,
+							ConnectionBudget connectionBudget) {
+		if (urls.length < 1) {
+			throw new IllegalArgumentException("Urls list must have at least one url");
+		}
+
+		this.urls = urls;
+		this.metadata = metadata;
+		this.numOfWorkers = numOfWorkers;
+		this.connectionBudget = connectionBudget;
+	}
+
+	/**
+	 * @param bufferPool pool to take the download buffers from, may be shared with other downloads
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Release the file in order to a channel instead of writing it to disk. The segments are still downloaded in
+	 * parallel, but only inside a window after the last released byte.
+	 *
+	 * @param channel channel to write the file to, it is not closed when the download ends
+	 */
+	public void setSequentialOutput(WritableByteChannel channel) {
+		this.sequentialOutput = channel;
+	}
+
+	/**
+	 * @param stream stream to write the file to in order, it is not closed when the download ends
+	 */
+	public void setSequentialOutput(OutputStream stream) {
+		this.setSequentialOutput(Channels.newChannel(stream));
+	}
+
+	/**
+	 * @param chunkCache cache to copy chunks from before downloading them, and to keep the chunks of the file in
+	 *                   once it is downloaded. Not used for a sequential output.
+	 */
+	public void setChunkCache(ChunkCache chunkCache) {
+		this.chunkCache = chunkCache;
+	}
 
-		metadata = new DownloadMetadata(urls);
+	/**
+	 * @param allocationPolicy how the output file gets its full size before the download starts, SPARSE by default.
+	 *                         Not used for a sequential output.
+	 */
+	public void setAllocationPolicy(AllocationPolicy allocationPolicy) {
+		this.allocationPolicy = allocationPolicy;
+	}
 
-		List<Segment> segments = metadata.getSegments();
+	/**
+	 * @param tracer tracer to record the phases of every request and every payload in, null for none
+	 */
+	public void setTracer(SegmentTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Cut the file into small segments so that ranges read through openChannel() can be downloaded before the rest
+	 *
+	 * @param randomAccess true to read the file while it is downloading
+	 */
+	public void setRandomAccess(boolean randomAccess) {
+		this.randomAccess = randomAccess;
+	}
+
+	/**
+	 * Open a channel that reads the file while it is downloading, blocks until the download starts writing
+	 *
+	 * @return a read only channel of the whole file
+	 * @throws IOException if the download failed before it started writing
+	 * @throws InterruptedException
+	 */
+	public DownloadChannel openChannel() throws IOException, InterruptedException {
+		if (!this.randomAccess || this.sequentialOutput != null) {
+			throw new IllegalStateException("Random access must be enabled, and the output must not be sequential");
+		}
+
+		SegmentScheduler scheduler;
+		try {
+			scheduler = this.writing.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Download failed before it started writing: " + e.getCause().getMessage());
+		}
+
+		return new DownloadChannel(this.metadata.getFileName(), this.metadata.getFileSize(), scheduler);
+	}
+
+	/**
+	 * @param listener listener to notify on progress and on state changes
+	 */
+	public void addListener(DownloadListener listener) {
+		this.handle.addListener(listener);
+	}
+
+	/**
+	 * Start the download in the background. The probe and the disk writer run on a thread of their own, only the
+	 * workers run on the executor, so a bounded executor can be shared by many downloads.
+	 *
+	 * @param executor executor to run the workers on
+	 * @return handle of the running download
+	 */
+	public DownloadHandle start(Executor executor) {
+		Thread writer = new Thread(() -> {
+			try {
+				this.download(executor);
+
+				// before the handle completes, the caller owns the file after that and may change it
+				this.storeInCache();
+				this.handle.finish(this.metadata, null);
+			} catch (Exception e) {
+				this.writing.completeExceptionally(e);
+				this.handle.finish(this.metadata, e);
+			} finally {
+				this.stopped = true;
+			}
+		}, "download-writer");
+		writer.start();
+
+		return this.handle;
+	}
+
+	/**
+	 * Download the file on threads of its own and block until it is done
+	 *
+	 * @return true if the whole file was downloaded
+	 * @throws InterruptedException
+	 */
+	public boolean run() throws InterruptedException {
+		ExecutorService executor = Executors.newCachedThreadPool();
+
+		try {
+			this.start(executor).join();
+			return true;
+		} catch (Exception e) {
+			return false;
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @param executor executor to run the workers on
+	 * @throws Exception if the download did not finish
+	 */
+	private void download(Executor executor) throws Exception {
+		if (metadata == null) {
+			// a download that is released in order can't be resumed, so it has no metadata on disk
+			metadata = new DownloadMetadata(this.urls, this.sequentialOutput == null, this.connectionBudget);
+		}
+
+		if (this.handle.isCancelRequested()) {
+			throw new IOException("Download cancelled");
+		}
+
+		this.handle.setState(DownloadHandle.State.DOWNLOADING);
 
 		if (metadata.getFileSize() < MINIMUM_FILE_SIZE_TO_USE_THREADS) {
 			System.out.println("File is smaller than 1M, using one thread");
 			numOfWorkers = THREADS_TO_USE_ON_SMALL_FILE;
+		} else if (!metadata.isRangeEnabled()) {
+			// every request gets the whole file, so only a single request from the start is useful
+			System.out.println("Server does not answer range requests, using one thread");
+			numOfWorkers = THREADS_TO_USE_ON_SMALL_FILE;
 		}
 
-		if (segments == null) {
-			segments = Segment.GetSegments(0, metadata.getFileSize(), SEGMENT_SIZE);
-		}
+		SegmentScheduler scheduler;
+		int workersToStart;
 
-		List<List<Segment>> calculatedSegments = GetCalculatedSegments(segments, numOfWorkers);
+		if (this.sequentialOutput != null) {
+			// small segments in file order, so the frontier keeps moving while every worker has one
+			long segmentSize = metadata.isRangeEnabled() ? SEQUENTIAL_SEGMENT_SIZE : Math.max(metadata.getFileSize(), 1);
+			List<Segment> segments = Segment.GetSegments(0, metadata.getFileSize(), segmentSize);
+			metadata.setSegments(Collections.singletonList(segments));
 
-		metadata.setSegments(calculatedSegments);
+			scheduler = new SegmentScheduler(segments, SEQUENTIAL_WINDOW_SEGMENTS * numOfWorkers * SEQUENTIAL_SEGMENT_SIZE);
+			workersToStart = numOfWorkers;
+		} else {
+			List<Segment> segments = metadata.getSegments();
+
+			if (segments == null) {
+				segments = Segment.GetSegments(0, metadata.getFileSize(), SEGMENT_SIZE);
+			}
+
+			// the whole file is reserved before the cache or the workers write into it
+			try {
+				FileSink.Allocate(metadata.getFileName(), metadata.getFileSize(), this.allocationPolicy);
+			} catch (IOException e) {
+				System.err.println("Error while reserving the output file: " + e.getMessage());
+				System.err.println("Download failed");
+				throw e;
+			}
+
+			// ranges that are in the cache are copied locally and never requested from the server
+			if (this.chunkCache != null) {
+				segments = this.chunkCache.fill(metadata, segments);
+				metadata.setSegments(Collections.singletonList(segments));
+			}
+
+			if (this.randomAccess && metadata.isRangeEnabled()) {
+				// small segments, so a range a reader asks for is not stuck inside a large segment of a worker
+				metadata.setSegments(Collections.singletonList(GetRandomAccessSegments(segments)));
+				workersToStart = numOfWorkers;
+			} else {
+				List<List<Segment>> calculatedSegments = GetCalculatedSegments(segments, numOfWorkers);
+
+				metadata.setSegments(calculatedSegments);
+				workersToStart = calculatedSegments.size();
+			}
+
+			scheduler = new SegmentScheduler(metadata.getSegments());
+		}
 
 		LinkedBlockingQueue<SegmentPayload> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
 
-		downloadWorkers = new DownloadWorker[calculatedSegments.size()];
-		Thread[] downloadWorkerThreads = new Thread[calculatedSegments.size()];
+		downloadWorkers = new DownloadWorker[workersToStart];
+		CountDownLatch runningWorkers = new CountDownLatch(workersToStart);
 
-		for (int i = 0; i < calculatedSegments.size(); i++) {
-			downloadWorkers[i] = new DownloadWorker(i, this.metadata.getUrls(), calculatedSegments.get(i), queue);
-			downloadWorkerThreads[i] = new Thread(downloadWorkers[i]);
+		for (int i = 0; i < workersToStart; i++) {
+			downloadWorkers[i] = new DownloadWorker(i, this.metadata, scheduler, queue,
+					connectionBudget, bufferPool, handle, tracer);
+			DownloadWorker downloadWorker = downloadWorkers[i];
 
-			downloadWorkerThreads[i].start();
+			executor.execute(() -> {
+				try {
+					downloadWorker.run();
+				} finally {
+					runningWorkers.countDown();
+				}
+			});
 		}
 
-		// Start percentage & metadata thread
-		DownloadPercentage downloadPercentage = new DownloadPercentage();
-		Thread downloadPercentageThread = new Thread(downloadPercentage);
-		downloadPercentageThread.start();
+		this.handle.setProgress(this.metadata.getBytesRead(), this.metadata.getFileSize());
+
+		IOException writeError = null;
+
+		// the metadata is written at most once per interval, a resume then downloads that much again at worst
+		long lastSerialized = System.nanoTime();
+		boolean serialized = true;
+
+		try (PayloadSink sink = this.sequentialOutput != null ?
+				new SequentialSink(this.sequentialOutput, scheduler, bufferPool) :
+				new FileSink(metadata.getFileName(), bufferPool)) {
+			this.writing.complete(scheduler);
 
-		try (RandomAccessFile file = new RandomAccessFile(metadata.getFileName(), "rwd")) {
 			while (true) {
+				// wake up the workers that wait for a segment so they see the cancel
+				if (this.handle.isCancelRequested()) {
+					scheduler.stop();
+				}
+
 				SegmentPayload segmentPayload;
 
 				segmentPayload = queue.poll(POLL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
 				if (segmentPayload == null) {
-					if (this.WorkersFinishedProducing()) {
+					// workers put their last payload before they stop, so nothing is left once they all stopped
+					if (runningWorkers.getCount() == 0 && queue.isEmpty()) {
 						break;
 					}
+
+					// nothing arrives, e.g. while paused, so what was written is not left out of the metadata
+					if (!serialized) {
+						this.metadata.serialize();
+						lastSerialized = System.nanoTime();
+						serialized = true;
+					}
+					continue;
+				}
+
+				// after a failed write nothing more is written, so the metadata matches what is on disk
+				if (writeError != null) {
+					this.bufferPool.release(segmentPayload.getData());
 					continue;
 				}
 
 				// Get needed data before writing
 				long seek = segmentPayload.getSeek();
 				int length = segmentPayload.getLength();
-				byte[] data = segmentPayload.getData();
 
 				try {
-					file.seek(seek);
-					file.write(data, 0, length); // Use 0 offset to write for the beginning of the buffer
+					long writeStart = System.nanoTime();
+					long completed = sink.write(segmentPayload);
+
+					if (this.tracer != null) {
+						// the worker stamps the payload after put returns, it may not have done it yet if the payload
+						// was taken right away
+						long queuedAt = segmentPayload.getQueuedAt();
+						long queueWait = queuedAt == 0 ? 0 : Math.max(0, writeStart - queuedAt);
+						this.tracer.recordPayload(seek, length, queueWait, System.nanoTime() - writeStart);
+					}
 
-					// Update new start after writing bytes
-					segmentPayload.getSegment().setStartIndex(seek + length);
+					// Update new start after writing bytes, a payload from before a retry must not move it back
+					Segment segment = segmentPayload.getSegment();
+					if (seek + length > segment.getStartIndex()) {
+						segment.setStartIndex(seek + length);
+					}
 
-					this.metadata.addBytesRead(length);
+					this.metadata.addBytesRead(completed);
 
-					// serialize after every write to disk
-					this.metadata.serialize();
+					// all the segments are written every time, with many segments doing it on every write would cost
+					// more than the write itself
+					serialized = false;
+					if (System.nanoTime() - lastSerialized >= SERIALIZE_INTERVAL_NANOSECONDS) {
+						this.metadata.serialize();
+						lastSerialized = System.nanoTime();
+						serialized = true;
+					}
+
+					scheduler.written();
 
 				} catch (IOException e) {
 					System.err.println("Error on file writer: " + e.getMessage());
+					writeError = e;
+					scheduler.stop();
 				}
+
+				this.handle.setProgress(this.metadata.getBytesRead(), this.metadata.getFileSize());
+			}
+		} finally {
+			// what was written since the last interval, a cancelled or failed download resumes from it
+			if (!serialized) {
+				this.metadata.serialize();
 			}
-		}
 
-		for (int i = 0; i < downloadWorkerThreads.length; i++) {
-			downloadWorkerThreads[i].join();
+			// readers that wait for a range that will not be written anymore
+			scheduler.stop();
 		}
-		downloadPercentage.Stop();
 
 		if (this.metadata.isCompleted()) {
 			this.metadata.Clean();
 			System.out.println("Download succeeded");
-		} else {
+			return;
+		}
+
+		if (this.handle.isCancelRequested()) {
+			System.out.println("Download cancelled");
+			throw new IOException("Download cancelled");
+		}
+
+		if (writeError == null && this.isRemoteChanged()) {
+			// released bytes and open channels can't be taken back, only a download to a file can start over
+			if (this.sequentialOutput != null || this.randomAccess || this.restarts >= MAX_RESTARTS) {
+				System.err.println("Download failed");
+				throw new RemoteChangedException("Remote file changed during the download");
+			}
+
+			System.out.println("Remote file changed, starting over");
+			this.restarts++;
+			this.metadata.Clean();
+			if (!new File(this.metadata.getFileName()).delete()) {
+				System.err.println("Something went wrong while deleting the old file");
+			}
+
+			this.metadata = null;
+			this.download(executor);
+			return;
+		}
+
+		if (writeError != null) {
 			System.err.println("Download failed");
+			throw writeError;
+		}
+
+		System.err.println("Download failed");
+		throw new IOException("Download failed");
+	}
+
+	/**
+	 * Keep the chunks of the downloaded file in the chunk cache, if there is one
+	 */
+	private void storeInCache() {
+		if (this.chunkCache == null || this.sequentialOutput != null) {
+			return;
+		}
+
+		try {
+			this.chunkCache.store(this.metadata);
+		} catch (IOException e) {
+			System.err.println("Error while storing chunks in the cache: " + e.getMessage());
 		}
 	}
 
 	/**
-	 * @return true if all workers have finished producing segments
+	 * @return true if a worker found that the file on the server is not the one on disk
 	 */
-	private boolean WorkersFinishedProducing() {
-		for (Segment segment : this.metadata.getSegments()) {
-			if (segment.getState() != Segment.SegmentState.FINISHED_PRODUCING) {
-				return false;
+	private boolean isRemoteChanged() {
+		for (DownloadWorker downloadWorker : this.downloadWorkers) {
+			if (downloadWorker.isRemoteChanged()) {
+				return true;
 			}
 		}
 
-		return true;
+		return false;
 	}
 
 	/**
@@ -150,51 +504,40 @@ public class DownloadManager {
 		return compressedSegments;
 	}
 
-
 	/**
-	 * Show the percentage of the download and save the metadata on every interval
+	 * @param segmentsInput - segments of the file
+	 * @return the parts of the segments that are left, cut into small segments
 	 */
-	private class DownloadPercentage implements Runnable {
-
-		private boolean stopRunning = false;
-		private int lastReportedPercentage = -1; // unique initial value
-
-		public synchronized void Stop() {
-			this.stopRunning = true;
+	private static List<Segment> GetRandomAccessSegments(List<Segment> segmentsInput) {
+		List<Segment> segments = new ArrayList<>();
+		for (Segment segment : segmentsInput) {
+			if (segment.getStartIndex() < segment.getEndIndex()) {
+				segment.setState(Segment.SegmentState.AVAILABLE);
+				segments.add(segment);
+			}
 		}
 
-		private synchronized boolean keepRunning() {
-			return !this.stopRunning;
+		List<Segment> randomAccessSegments = new ArrayList<>();
+		for (Segment segment : Segment.CompressSegments(segments)) {
+			randomAccessSegments.addAll(Segment.GetSegments(segment.getStartIndex(), segment.getEndIndex(),
+					RANDOM_ACCESS_SEGMENT_SIZE));
 		}
 
-		@Override
-		public void run() {
-			while (keepRunning()) {
-				int newPercentage = getDownloadPercentage();
-				if (newPercentage != lastReportedPercentage) {
-					System.out.printf("Downloaded %d%%\n", newPercentage);
-				}
-
-				lastReportedPercentage = newPercentage;
-
-				try {
-					Thread.sleep(DOWNLOAD_PERCENTAGE_INTERVAL_MILLISECONDS);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+		return randomAccessSegments;
 	}
 
 	/**
-	 * @return the percentage that was downloaded until now
+	 * @return true once the disk writer stopped and the handle completed
 	 */
-	private int getDownloadPercentage() {
-		long completed = this.metadata.getBytesRead();
-
-		// Calculate the percentage given completed and file size.
-		return (int) (0.5d + ((double) completed / (double) this.metadata.getFileSize()) * 100);
+	public boolean isStopped() {
+		return stopped;
 	}
 
+	public DownloadHandle getHandle() {
+		return handle;
+	}
 
+	public DownloadMetadata getMetadata() {
+		return metadata;
+	}
 }
@@ -28,11 +28,40 @@ public class DownloadMetadata implements Serializable {
 
 	private boolean rangeEnabled;
 
+	// validators of the remote file, null when the server did not send them
+	private String etag;
+	private String lastModified;
+
+	// mirrors that agree on the file, probed again on every run
+	private transient MirrorSet mirrors;
+
+	// metadata of a download that can't be resumed (e.g. streamed to stdout) is never kept on disk
+	private transient boolean persistent;
+
 	/**
 	 * @param urls - list of urls to use in the download
 	 * @throws IOException
 	 */
 	DownloadMetadata(String[] urls) throws IOException {
+		this(urls, true);
+	}
+
+	/**
+	 * @param urls       - list of urls to use in the download
+	 * @param persistent - false to neither read nor write the metadata on disk
+	 * @throws IOException
+	 */
+	DownloadMetadata(String[] urls, boolean persistent) throws IOException {
+		this(urls, persistent, null);
+	}
+
+	/**
+	 * @param urls             - list of urls to use in the download
+	 * @param persistent       - false to neither read nor write the metadata on disk
+	 * @param connectionBudget - budget the probes of the mirrors take their connections from, null for none
+	 * @throws IOException
+	 */
+	DownloadMetadata(String[] urls, boolean persistent, ConnectionBudget connectionBudget) throws IOException {
 		if (urls.length < 1) {
 			throw new IllegalArgumentException("Urls list must have at least one url");
 		}
@@ -41,19 +70,24 @@ public class DownloadMetadata implements Serializable {
 		this.fileSize = 0L; // default value before downloading something
 		this.bytesRead = 0L; // default value before downloading something
 		this.rangeEnabled = false;
+		this.persistent = persistent;
 
 		// Take the filename from the url itself
 		fileName = urls[0].substring(urls[0].lastIndexOf("/") + 1);
 
 		metadataPath = METADATA_FOLDER_PATH + this.fileName + ".metadata";
 
-		downloadMetadata();
+		downloadMetadata(connectionBudget);
 	}
 
 	/**
 	 * Delete all metadata files that were created
 	 */
 	public void Clean() {
+		if (!this.persistent) {
+			return;
+		}
+
 		File metadataFile = new File(this.metadataPath);
 
 		if (metadataFile.exists()) {
@@ -74,33 +108,44 @@ public class DownloadMetadata implements Serializable {
 	}
 
 	/**
-	 * Download the metadata from the server (file size, if range is supported)
+	 * Probe all the mirrors and take the metadata (file size, if range is supported, validators) from the first one
+	 * that answers. A resumed download goes on only if a mirror still has the same file.
 	 *
+	 * @param connectionBudget - budget the probes take their connections from, null for none
 	 * @throws IOException
 	 */
-	private void downloadMetadata() throws IOException {
-		// if we already have downloaded metadata, skip this part
-		if (deserialize()) {
-			System.out.println("Using download metadata cache on disk");
-			return;
-		}
-		URL link = new URL(this.urls[0]);
-
-		HttpURLConnection urlConn = (HttpURLConnection) link.openConnection();
+	private void downloadMetadata(ConnectionBudget connectionBudget) throws IOException {
+		try {
+			// if we already have downloaded metadata, skip this part
+			if (deserialize()) {
+				System.out.println("Using download metadata cache on disk");
+				this.mirrors = new MirrorSet(this.urls, this.fileSize, this.getValidator(), connectionBudget);
 
-		int responseCode = urlConn.getResponseCode();
-		if (responseCode != HttpURLConnection.HTTP_OK) {
-			throw new IOException("Bad response code from server != 200 OK");
-		}
+				try {
+					this.mirrors.awaitFirst();
+					return;
+				} catch (RemoteChangedException e) {
+					// the bytes on disk are of another version of the file, or no mirror can continue them
+					System.out.printf("Can't continue the download, %s, starting over\n", e.getMessage());
+					this.Clean();
+					if (new File(this.fileName).exists() && !new File(this.fileName).delete()) {
+						System.err.println("Something went wrong while deleting the old file");
+					}
+
+					this.bytesRead = 0L;
+					this.segments = null;
+				}
+			}
 
-		fileSize = urlConn.getContentLengthLong();
+			this.mirrors = new MirrorSet(this.urls, connectionBudget);
+			MirrorProbe probe = this.mirrors.awaitFirst();
 
-		// Check if server accepts ranges (all should accept in this exercise)
-		String range = urlConn.getHeaderField("Accept-Ranges");
-		if (range == null || range.isEmpty()) {
-			rangeEnabled = false;
-		} else {
-			rangeEnabled = true;
+			fileSize = probe.getFileSize();
+			rangeEnabled = probe.isRangeEnabled();
+			etag = probe.getEtag();
+			lastModified = probe.getLastModified();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while probing the mirrors: " + e.getMessage());
 		}
 
 		serialize();
@@ -110,6 +155,10 @@ public class DownloadMetadata implements Serializable {
 	 * serialize the metadata to disk
 	 */
 	void serialize() {
+		if (!this.persistent) {
+			return;
+		}
+
 		Exception err = new Exception();
 
 		for (int i = 0; i < RETRIES_ON_SERIALIZATION_FAIL; i++) {
@@ -143,6 +192,10 @@ public class DownloadMetadata implements Serializable {
 	 * @return deserialize metadata from disk
 	 */
 	boolean deserialize() {
+		if (!this.persistent) {
+			return false;
+		}
+
 		DownloadMetadata downloadMetadata = null;
 		try {
 			FileInputStream fileIn = new FileInputStream(this.metadataPath);
@@ -155,6 +208,8 @@ public class DownloadMetadata implements Serializable {
 			this.urls = downloadMetadata.urls;
 			this.rangeEnabled = downloadMetadata.rangeEnabled;
 			this.segments = downloadMetadata.segments;
+			this.etag = downloadMetadata.etag;
+			this.lastModified = downloadMetadata.lastModified;
 
 			in.close();
 			fileIn.close();
@@ -177,6 +232,49 @@ public class DownloadMetadata implements Serializable {
 		return fileName;
 	}
 
+	/**
+	 * @return true if the server answers range requests, so the file can be downloaded in parallel and resumed
+	 */
+	public boolean isRangeEnabled() {
+		return rangeEnabled;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return a validator that identifies this version of the remote file, null if the server gave none.
+	 * A weak ETag does not promise the same bytes, so Last-Modified is used instead of it.
+	 */
+	public String getValidator() {
+		return GetValidator(this.etag, this.lastModified);
+	}
+
+	/**
+	 * @param etag         - ETag of the file, null if none
+	 * @param lastModified - Last-Modified of the file, null if none
+	 * @return the strong ETag, else Last-Modified, null if there is neither
+	 */
+	static String GetValidator(String etag, String lastModified) {
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
+		}
+
+		return lastModified;
+	}
+
+	/**
+	 * @return mirrors to download the file from
+	 */
+	public MirrorSet getMirrors() {
+		return mirrors;
+	}
+
 	public List<Segment> getSegments() {
 		return segments;
 	}
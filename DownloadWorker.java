@@ -1,62 +1,118 @@
 
 
+import javax.net.ssl.HttpsURLConnection;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class DownloadWorker implements Runnable {
-	private final static int BUFFER_SIZE = 256 * 1024;
 	private final static int WAIT_ON_ERROR_MILLISECONDS = 2000;
 	private final static int CONNECTION_READ_TIMEOUT = 1000;
 	private final static int CONNECTION_TIMEOUT = 2000;
+	private final static int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
 	private int id;
-	private String[] urls;
+	private MirrorSet mirrors;
+	private String validator;
+	private long fileSize;
+	private volatile boolean remoteChanged = false;
 
-	private List<Segment> segments;
+	private SegmentScheduler scheduler;
 	private LinkedBlockingQueue<SegmentPayload> queue;
+	private ConnectionBudget connectionBudget;
+	private BufferPool bufferPool;
+	private DownloadHandle handle;
+	private SegmentTracer tracer;
+
+	// phases of the current request for the tracer, allocated once
+	private final long[] phases = new long[SegmentTracer.PHASE_TTFB + 1];
+	private int phase;
+	private long phaseStart;
+
+	// counted by produceStream for the tracer, for the current request only
+	private long producedBytes;
+	private long readNanos;
+	private long putNanos;
 
 	/**
-	 * @param id       - worker id
-	 * @param urls     - urls to download from
-	 * @param segments - segments to download
-	 * @param queue    - LinkedBlockingQueue to put the results in for disk writer
+	 * @param id               - worker id
+	 * @param metadata         - metadata of the file, with the urls to download from and the validator to send
+	 * @param scheduler        - scheduler to take the segments to download from, shared with the other workers
+	 * @param queue            - LinkedBlockingQueue to put the results in for disk writer
+	 * @param connectionBudget - budget to take a connection from before contacting the server
+	 * @param bufferPool       - pool to take the buffers of the payloads from, the disk writer returns them
+	 * @param handle           - handle of the download, to stop while it is paused or cancelled
+	 * @param tracer           - tracer to record the phases of every request in, null for none
 	 */
-	public DownloadWorker(int id, String[] urls, List<Segment> segments, LinkedBlockingQueue<SegmentPayload> queue) {
+	public DownloadWorker(int id, DownloadMetadata metadata, SegmentScheduler scheduler,
+						  LinkedBlockingQueue<SegmentPayload> queue, ConnectionBudget connectionBudget,
+						  BufferPool bufferPool, DownloadHandle handle, SegmentTracer tracer) {
 		this.id = id;
-		this.urls = urls;
+		this.mirrors = metadata.getMirrors();
+		// If-Range only means something to a server that answers ranges, other servers send the whole file anyway
+		this.validator = metadata.isRangeEnabled() ? metadata.getValidator() : null;
+		this.fileSize = metadata.getFileSize();
 
-		this.segments = segments;
+		this.scheduler = scheduler;
 
 		this.queue = queue;
+		this.connectionBudget = connectionBudget;
+		this.bufferPool = bufferPool;
+		this.handle = handle;
+		this.tracer = tracer;
 	}
 
 	public void run() {
 
 		Segment segment;
-		while ((segment = Segment.GetOne(this.segments)) != null) {
+		while (this.awaitRunning() && (segment = this.nextSegment()) != null) {
 			String url = this.getUrl();
 			System.out.printf("[%d] Start downloading range (%d - %d) from %s\n",
 					this.id, segment.getStartIndex(), segment.getEndIndex(), url);
 
 			segment.setState(Segment.SegmentState.IN_PROGRESS);
 
-			this.downloadSegment(segment, url);
+			try {
+				this.connectionBudget.acquire();
+			} catch (InterruptedException e) {
+				System.err.println("Interrupted while waiting for a connection: " + e.getMessage());
+				this.scheduler.release(segment);
+				return;
+			}
+
+			try {
+				this.downloadSegment(segment, url);
+			} finally {
+				this.connectionBudget.release();
+			}
+
+			// give it back so any worker can continue from where it stopped
+			if (segment.getState() != Segment.SegmentState.FINISHED_PRODUCING) {
+				this.scheduler.release(segment);
+			}
+		}
+	}
+
+	/**
+	 * @return the next segment to download, null when there is nothing left to do
+	 */
+	private Segment nextSegment() {
+		try {
+			return this.scheduler.next();
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while waiting for a segment: " + e.getMessage());
+			return null;
 		}
 	}
 
 	/**
-	 * @return one of the urls randomly
+	 * @return one of the mirrors, faster mirrors more often
 	 */
 	public String getUrl() {
-		int rnd = new Random().nextInt(this.urls.length);
-		return this.urls[rnd];
+		return this.mirrors.pick();
 	}
 
 
@@ -72,69 +128,266 @@ public class DownloadWorker implements Runnable {
 			long startIndex = segment.getStartIndex();
 			long endIndex = segment.getEndIndex();
 
+			long requestStart = System.nanoTime();
+			long ttfb;
+
+			// phases of this request for the tracer, the one that is running when the request fails gets its time
+			this.resetPhases(requestStart);
+
 			try {
 
 				URL link = new URL(url);
+
 				conn = (HttpURLConnection) link.openConnection();
+				// the end of a range is inclusive
 				conn.setRequestProperty("Range", "bytes=" + startIndex
-						+ "-" + endIndex);
+						+ "-" + (endIndex - 1));
+
+				// the server sends the whole file instead of the range if it is not the file we have on disk
+				if (this.validator != null) {
+					conn.setRequestProperty("If-Range", this.validator);
+				}
+
 				conn.setReadTimeout(CONNECTION_READ_TIMEOUT);
 				conn.setConnectTimeout(CONNECTION_TIMEOUT);
-				int responseCode = conn.getResponseCode();
-				if (responseCode != HttpURLConnection.HTTP_OK &&
-						responseCode != HttpURLConnection.HTTP_PARTIAL) {
-					throw new IOException("Invalid response code received: " + responseCode);
+
+				if (this.tracer != null) {
+					if (conn instanceof HttpsURLConnection) {
+						((HttpsURLConnection) conn).setSSLSocketFactory(SegmentTracer.GetSocketFactory());
+					}
+
+					// a kept alive connection makes connect() return right away
+					this.phaseStart = System.nanoTime();
+					SegmentTracer.StartConnect();
+					conn.connect();
+					this.endPhase(SegmentTracer.PHASE_TTFB);
 				}
 
+				long requestSent = System.nanoTime();
+				int responseCode = conn.getResponseCode();
+				long headers = System.nanoTime();
+				ttfb = headers - requestSent;
+				this.phases[SegmentTracer.PHASE_TTFB] = ttfb;
+
+				this.mirrors.report(url, headers - requestStart);
+				this.checkResponse(conn, responseCode, startIndex);
+
 			} catch (MalformedURLException e) {
 
 				System.err.println("URL is invalid: " + e.getMessage());
 				return;
+			} catch (RemoteChangedException e) {
+
+				// don't read the body, and stop the other workers before they read more of the old file
+				System.err.printf("[%d] Remote file changed: %s\n", this.id, e.getMessage());
+				this.traceFailedRequest(startIndex);
+				this.remoteChanged = true;
+				this.scheduler.stop();
+				return;
 			} catch (IOException e) {
 
 				System.err.println("Can't open connection: " + e.getMessage());
+				this.traceFailedRequest(startIndex);
+				this.mirrors.reportFailure(url);
 				sleep(WAIT_ON_ERROR_MILLISECONDS);
 				return;
 			}
 
 			try {
-				boolean finished = this.produceStream(segment, startIndex, endIndex, conn.getInputStream());
+				InputStream stream = conn.getInputStream();
+				boolean finished = this.produceStream(segment, startIndex, endIndex, stream);
+
+				if (this.tracer != null) {
+					this.tracer.recordRequest(this.id, startIndex, this.producedBytes,
+							this.phases[SegmentTracer.PHASE_DNS], this.phases[SegmentTracer.PHASE_CONNECT],
+							this.phases[SegmentTracer.PHASE_TLS], ttfb, this.readNanos, this.putNanos);
+				}
 				if (finished) {
 					segment.setState(Segment.SegmentState.FINISHED_PRODUCING);
+
+					// the stream was read to its end, closing it keeps the connection alive for the next request
+					stream.close();
+				} else {
+					// don't keep the connection while paused or before retrying
+					conn.disconnect();
 				}
 
 				return;
 
 			} catch (IOException e) {
 				System.err.println("Error while get input stream: " + e.getMessage());
+				this.mirrors.reportFailure(url);
 			} catch (Exception e) {
 				System.err.println("Error while downloading segment: " + e.getMessage());
 			}
 		}
 	}
 
+	/**
+	 * @param conn         - connection of the range request
+	 * @param responseCode - response code of the server
+	 * @param startIndex   - first byte of the range that was asked for
+	 * @throws RemoteChangedException if the response shows that the file is not the one we started with
+	 * @throws IOException            if the response can't be used
+	 */
+	private void checkResponse(HttpURLConnection conn, int responseCode, long startIndex) throws IOException {
+		if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+			// Content-Range is "bytes START-END/SIZE", the size must still be the size of our file
+			String contentRange = conn.getHeaderField("Content-Range");
+			if (contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+				String size = contentRange.substring(contentRange.lastIndexOf('/') + 1).trim();
+				if (!size.equals("*") && !size.equals(String.valueOf(this.fileSize))) {
+					conn.disconnect();
+					throw new RemoteChangedException("size is now " + size + " instead of " + this.fileSize);
+				}
+			}
+			return;
+		}
+
+		if (responseCode == HttpURLConnection.HTTP_OK) {
+			// the probe showed that ranges work, so the whole file means If-Range failed
+			if (this.validator != null) {
+				conn.disconnect();
+				throw new RemoteChangedException("validator " + this.validator + " does not match anymore");
+			}
+
+			// otherwise the whole file is fine only where it starts at our segment
+			if (startIndex > 0) {
+				conn.disconnect();
+				throw new IOException("Server ignored the range request");
+			}
+			return;
+		}
+
+		conn.disconnect();
+
+		if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+			throw new RemoteChangedException("range starting at " + startIndex + " is not in the file anymore");
+		}
+
+		throw new IOException("Invalid response code received: " + responseCode);
+	}
+
+	/**
+	 * @param now - start of the request
+	 */
+	private void resetPhases(long now) {
+		for (int i = 0; i < this.phases.length; i++) {
+			this.phases[i] = 0L;
+		}
+
+		// the lookup is timed by the socket factory inside the connect, so the connect is the first phase
+		this.phase = SegmentTracer.PHASE_CONNECT;
+		this.phaseStart = now;
+	}
+
+	/**
+	 * Give the time since the start of the running phase to it, and start the next one
+	 *
+	 * @param next - the phase that starts now
+	 */
+	private void endPhase(int next) {
+		long now = System.nanoTime();
+
+		if (this.phase == SegmentTracer.PHASE_CONNECT) {
+			// the socket factory noted the steps of a new connection, a kept alive connection has none of them
+			long lookupStarted = SegmentTracer.GetLookupStarted();
+			long lookupDone = SegmentTracer.GetLookupDone();
+			long tcpConnected = SegmentTracer.GetTcpConnected();
+
+			long dns = 0L;
+			if (lookupStarted >= this.phaseStart) {
+				// a lookup that never finished is where the connect failed
+				dns = (lookupDone >= lookupStarted ? lookupDone : now) - lookupStarted;
+			}
+
+			long tcpEnd = tcpConnected >= this.phaseStart ? tcpConnected : now;
+			this.phases[SegmentTracer.PHASE_DNS] = dns;
+			this.phases[SegmentTracer.PHASE_CONNECT] = tcpEnd - this.phaseStart - dns;
+			this.phases[SegmentTracer.PHASE_TLS] = now - tcpEnd;
+		} else {
+			this.phases[this.phase] = now - this.phaseStart;
+		}
+
+		this.phase = next;
+		this.phaseStart = now;
+	}
+
+	/**
+	 * Record a request that failed before its body, with the phases it went through
+	 *
+	 * @param startIndex - first byte that was asked for
+	 */
+	private void traceFailedRequest(long startIndex) {
+		if (this.tracer == null) {
+			return;
+		}
+
+		if (this.phases[this.phase] == 0L) {
+			this.endPhase(this.phase);
+		}
+
+		this.tracer.recordFailedRequest(this.id, startIndex, this.phases[SegmentTracer.PHASE_DNS],
+				this.phases[SegmentTracer.PHASE_CONNECT], this.phases[SegmentTracer.PHASE_TLS],
+				this.phases[SegmentTracer.PHASE_TTFB]);
+	}
+
+	/**
+	 * @return true if this worker found that the file on the server changed
+	 */
+	public boolean isRemoteChanged() {
+		return remoteChanged;
+	}
+
 	/**
 	 * @param segment - the segment that the stream relates to
 	 * @param stream  - the stream to download and send to the queue
 	 * @return
 	 */
 	private boolean produceStream(Segment segment, long startIndex, long endIndex, InputStream stream) {
-		int len;
-		byte[] buffer = new byte[BUFFER_SIZE];
-
 		long seek = startIndex;
 
 		long actualDownload = 0L;
 		long expectedDownload = endIndex - startIndex;
 
+		this.producedBytes = 0L;
+		this.readNanos = 0L;
+		this.putNanos = 0L;
+
 		try {
-			// read will return -1 when done
-			while ((len = stream.read(buffer)) != -1) {
-				SegmentPayload segmentPayload = new SegmentPayload(segment, Arrays.copyOf(buffer, len), len, seek);
+			while (this.handle.isRunning() && !this.scheduler.isStopped()) {
+				byte[] buffer = this.bufferPool.acquire();
+
+				long readStart = System.nanoTime();
+				// queue whatever arrived, a slow server still makes progress and the frontier moves with every read
+				int len;
+				try {
+					len = stream.read(buffer);
+				} catch (IOException e) {
+					this.bufferPool.release(buffer);
+					throw e;
+				}
+				long readEnd = System.nanoTime();
+				this.readNanos += readEnd - readStart;
+
+				// read will return -1 when done
+				if (len == -1) {
+					this.bufferPool.release(buffer);
+					break;
+				}
+
+				// the disk writer returns the buffer to the pool once it is written
+				SegmentPayload segmentPayload = new SegmentPayload(segment, buffer, len, seek);
 				this.queue.put(segmentPayload);
+				long queued = System.nanoTime();
+				this.putNanos += queued - readEnd;
+
+				// after put, so the time blocked on a full queue is not counted again as time in the queue
+				segmentPayload.setQueuedAt(queued);
 
 				seek += len;
 				actualDownload += len;
+				this.producedBytes = actualDownload;
 			}
 
 		} catch (IOException e) {
@@ -152,6 +405,18 @@ public class DownloadWorker implements Runnable {
 		return true;
 	}
 
+	/**
+	 * @return false if the download was cancelled, blocks while it is paused
+	 */
+	private boolean awaitRunning() {
+		try {
+			return this.handle.awaitRunning();
+		} catch (InterruptedException e) {
+			System.err.println("Interrupted while paused: " + e.getMessage());
+			return false;
+		}
+	}
+
 	/**
 	 * @param milliseconds - number of milliseconds to sleep
 	 * @return true if sleep was successful
@@ -0,0 +1,94 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes every payload at its own offset of the output file
+ */
+public class FileSink implements PayloadSink {
+	private static final int ZEROS_BUFFER_SIZE = 1024 * 1024;
+
+	private final RandomAccessFile file;
+	private final BufferPool bufferPool;
+
+	/**
+	 * @param fileName   - path of the output file
+	 * @param bufferPool - pool to return the buffers of the payloads to
+	 * @throws IOException
+	 */
+	public FileSink(String fileName, BufferPool bufferPool) throws IOException {
+		this.file = new RandomAccessFile(fileName, "rwd");
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Give the output file its full size before any range is downloaded, so the workers write inside the file
+	 * instead of growing it at random offsets. The part of the file that is already there is kept, anything after
+	 * fileSize is cut off so the file ends up exactly as large as the remote file.
+	 *
+	 * @param fileName - path of the output file
+	 * @param fileSize - size of the whole file
+	 * @param policy   - how to give the file its size
+	 * @throws IOException if there is not enough free space for the rest of the file
+	 */
+	public static void Allocate(String fileName, long fileSize, AllocationPolicy policy) throws IOException {
+		File file = new File(fileName).getAbsoluteFile();
+		long existing = file.length(); // 0 when the file does not exist yet
+
+		if (existing >= fileSize) {
+			// a larger file left on disk would keep its bytes after the end of the download
+			if (existing > fileSize) {
+				try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+					output.setLength(fileSize);
+				}
+			}
+			return;
+		}
+
+		// even a sparse file takes the space once it is written, so check it before anything is downloaded
+		long usable = file.getParentFile().getUsableSpace();
+		if (usable < fileSize - existing) {
+			throw new IOException(String.format("Not enough free space for %s: %d bytes needed, %d usable",
+					fileName, fileSize - existing, usable));
+		}
+
+		try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+			if (policy == AllocationPolicy.SPARSE) {
+				output.setLength(fileSize);
+				return;
+			}
+
+			FileChannel channel = output.getChannel();
+			ByteBuffer zeros = ByteBuffer.allocateDirect(ZEROS_BUFFER_SIZE);
+
+			for (long position = existing; position < fileSize; ) {
+				zeros.clear();
+				zeros.limit((int) Math.min(ZEROS_BUFFER_SIZE, fileSize - position));
+				while (zeros.hasRemaining()) {
+					position += channel.write(zeros, position);
+				}
+			}
+
+			channel.force(true);
+		}
+	}
+
+	@Override
+	public long write(SegmentPayload payload) throws IOException {
+		try {
+			this.file.seek(payload.getSeek());
+			this.file.write(payload.getData(), 0, payload.getLength()); // Use 0 offset to write for the beginning of the buffer
+		} finally {
+			this.bufferPool.release(payload.getData());
+		}
+
+		return payload.getLength();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.file.close();
+	}
+}
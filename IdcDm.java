@@ -2,18 +2,73 @@
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class IdcDm {
 
+	private static final String BATCH_OPTION = "--batch";
+	private static final String DAEMON_OPTION = "--daemon";
+	private static final String STDOUT_OPTION = "--stdout";
+	private static final String CACHE_OPTION = "--cache";
+	private static final String PREALLOCATE_OPTION = "--preallocate";
+	private static final String TRACE_OPTION = "--trace";
+	private static final int DEFAULT_DAEMON_PORT = 9595;
+
 	public static void main(String[] args) {
 
+		Options options = new Options();
+		int firstArgument = 0;
+
+		while (firstArgument < args.length && args[firstArgument].startsWith("--")) {
+			String option = args[firstArgument++];
+
+			if (option.equals(BATCH_OPTION)) {
+				options.batch = true;
+			} else if (option.equals(DAEMON_OPTION)) {
+				options.daemon = true;
+			} else if (option.equals(STDOUT_OPTION)) {
+				options.stdout = true;
+			} else if (option.equals(PREALLOCATE_OPTION)) {
+				options.allocationPolicy = AllocationPolicy.PREALLOCATE;
+			} else if (option.equals(CACHE_OPTION) && firstArgument < args.length) {
+				options.cacheDirectory = new File(args[firstArgument++]);
+			} else if (option.equals(TRACE_OPTION) && firstArgument < args.length) {
+				options.traceFile = args[firstArgument++];
+			} else {
+				System.err.println("Unknown option: " + option);
+				printUsage();
+				return;
+			}
+		}
+		args = Arrays.copyOfRange(args, firstArgument, args.length);
+
+		if ((options.batch && options.daemon) || (options.stdout && (options.batch || options.daemon)) ||
+				(options.stdout && options.allocationPolicy == AllocationPolicy.PREALLOCATE) ||
+				(options.traceFile != null && (options.batch || options.daemon))) {
+			printUsage();
+			return;
+		}
+
+		if (options.batch) {
+			batch(args, options);
+			return;
+		}
+
+		if (options.daemon) {
+			daemon(args, options);
+			return;
+		}
+
 		if (args.length != 1 && args.length != 2) {
-			System.err.println("Usage: \n\tjava IdcDm URL|URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]");
+			printUsage();
 			return;
 		}
 
@@ -55,7 +110,7 @@ public class IdcDm {
 
 			if (isUrl) {
 
-				new DownloadManager(new String[]{args[0]}, numOfWorkers);
+				download(new String[]{args[0]}, numOfWorkers, options);
 
 			} else {
 
@@ -71,10 +126,156 @@ public class IdcDm {
 
 				String[] data = lines.toArray(new String[]{});
 
-				new DownloadManager(data, numOfWorkers);
+				download(data, numOfWorkers, options);
 			}
 		} catch (Exception e) {
 			System.err.println("Error while downloading: " + e.getMessage());
 		}
 	}
+
+	/**
+	 * Download a single file and print its progress
+	 *
+	 * @param urls         - mirrors of the file
+	 * @param numOfWorkers - number of workers to use
+	 * @param options      - options given before the arguments
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	private static void download(String[] urls, int numOfWorkers, Options options)
+			throws InterruptedException, IOException {
+		DownloadManager downloadManager = new DownloadManager(urls, numOfWorkers);
+		downloadManager.setChunkCache(openChunkCache(options));
+		downloadManager.setAllocationPolicy(options.allocationPolicy);
+
+		if (options.stdout) {
+			// the file goes to stdout, so everything that is printed goes to stderr
+			downloadManager.setSequentialOutput(new FileOutputStream(FileDescriptor.out));
+			System.setOut(System.err);
+		}
+
+		SegmentTracer tracer = null;
+		if (options.traceFile != null) {
+			tracer = new SegmentTracer(SegmentTracer.DEFAULT_CAPACITY);
+			downloadManager.setTracer(tracer);
+		}
+
+		downloadManager.addListener(new ConsoleProgressListener());
+		boolean succeeded = downloadManager.run();
+
+		if (tracer != null) {
+			tracer.write(options.traceFile);
+			System.out.println("Trace: " + tracer.getSummary());
+		}
+
+		if (!succeeded) {
+			Throwable error = downloadManager.getHandle().getError();
+			throw new IOException(error == null ? "Download did not finish" : error.getMessage());
+		}
+	}
+
+	/**
+	 * Download all the files of a manifest, arguments are: MANIFEST-FILE [MAX-CONCURRENT-CONNECTIONS]
+	 *
+	 * @param args    - arguments of main after the options
+	 * @param options - options given before the arguments
+	 */
+	private static void batch(String[] args, Options options) {
+		if (args.length != 1 && args.length != 2) {
+			printUsage();
+			return;
+		}
+
+		int maxConnections = 1; // default number of connections
+
+		if (args.length == 2) {
+			try {
+				maxConnections = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				System.err.printf("Invalid number of connections: %s", e.getMessage());
+				return;
+			}
+		}
+
+		try {
+			BatchDownloadManager batchDownloadManager = new BatchDownloadManager(
+					BatchDownloadManager.ParseManifest(args[0]), maxConnections, openChunkCache(options),
+					options.allocationPolicy);
+			batchDownloadManager.run();
+		} catch (Exception e) {
+			System.err.println("Error while downloading batch: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Run as a daemon, arguments are: [PORT] [MAX-CONCURRENT-CONNECTIONS]
+	 *
+	 * @param args    - arguments of main after the options
+	 * @param options - options given before the arguments
+	 */
+	private static void daemon(String[] args, Options options) {
+		if (args.length > 2) {
+			printUsage();
+			return;
+		}
+
+		int port = DEFAULT_DAEMON_PORT;
+		int maxConnections = 1; // default number of connections
+
+		try {
+			if (args.length > 0) {
+				port = Integer.parseInt(args[0]);
+			}
+			if (args.length > 1) {
+				maxConnections = Integer.parseInt(args[1]);
+			}
+		} catch (NumberFormatException e) {
+			System.err.printf("Invalid number: %s", e.getMessage());
+			return;
+		}
+
+		DownloadDaemon downloadDaemon = new DownloadDaemon(maxConnections);
+		try {
+			downloadDaemon.setChunkCache(openChunkCache(options));
+			downloadDaemon.setAllocationPolicy(options.allocationPolicy);
+			downloadDaemon.start(port);
+		} catch (Exception e) {
+			System.err.println("Error while starting daemon: " + e.getMessage());
+			downloadDaemon.stop();
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(downloadDaemon::stop));
+	}
+
+	/**
+	 * @param options - options given before the arguments
+	 * @return the chunk cache that was asked for, null if none
+	 * @throws IOException
+	 */
+	private static ChunkCache openChunkCache(Options options) throws IOException {
+		if (options.cacheDirectory == null) {
+			return null;
+		}
+
+		return new ChunkCache(options.cacheDirectory, ChunkCache.DEFAULT_MAX_BYTES, true);
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: \n\tjava IdcDm [--stdout | --preallocate] [--cache DIR] [--trace FILE] URL|URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]" +
+				"\n\tjava IdcDm --batch [--preallocate] [--cache DIR] MANIFEST-FILE [MAX-CONCURRENT-CONNECTIONS]" +
+				"\n\tjava IdcDm --daemon [--preallocate] [--cache DIR] [PORT] [MAX-CONCURRENT-CONNECTIONS]");
+	}
+
+	/**
+	 * Options that are given before the arguments
+	 */
+	private static class Options {
+		private boolean batch = false; // download the files of a manifest
+		private boolean daemon = false; // stay resident and accept jobs
+		private boolean stdout = false; // release the file in order to stdout instead of writing it to disk
+		private File cacheDirectory = null; // directory of the chunk cache, no cache when null
+		private AllocationPolicy allocationPolicy = AllocationPolicy.SPARSE; // how the output file is reserved
+		private String traceFile = null; // file to write the phases of every request and payload to, no tracing when null
+	}
 }
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * What a single mirror answered to a probe: the size and the validators of its file and how long it took to answer
+ */
+public class MirrorProbe {
+	private static final int CONNECTION_READ_TIMEOUT = 5000;
+	private static final int CONNECTION_TIMEOUT = 5000;
+
+	private final String url;
+	private final long fileSize;
+	private final boolean rangeEnabled;
+	private final String etag;
+	private final String lastModified;
+	private final long latency;
+
+	/**
+	 * @param url          - url of the mirror
+	 * @param fileSize     - size of the file on the mirror
+	 * @param rangeEnabled - true if the mirror answers range requests
+	 * @param etag         - ETag of the file, null if none
+	 * @param lastModified - Last-Modified of the file, null if none
+	 * @param latency      - nanoseconds from the request to the response headers
+	 */
+	MirrorProbe(String url, long fileSize, boolean rangeEnabled, String etag, String lastModified, long latency) {
+		this.url = url;
+		this.fileSize = fileSize;
+		this.rangeEnabled = rangeEnabled;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.latency = latency;
+	}
+
+	/**
+	 * Ask for the first byte of the file only, a 206 gives the size in Content-Range and shows that ranges work
+	 *
+	 * @param url - url of the mirror
+	 * @return what the mirror answered
+	 * @throws IOException if the mirror can't be used
+	 */
+	public static MirrorProbe Probe(String url) throws IOException {
+		long start = System.nanoTime();
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setRequestProperty("Range", "bytes=0-0");
+		conn.setReadTimeout(CONNECTION_READ_TIMEOUT);
+		conn.setConnectTimeout(CONNECTION_TIMEOUT);
+
+		try {
+			int responseCode = conn.getResponseCode();
+			long latency = System.nanoTime() - start;
+
+			long fileSize;
+			boolean rangeEnabled;
+
+			if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+				// Content-Range is "bytes 0-0/SIZE"
+				String contentRange = conn.getHeaderField("Content-Range");
+				if (contentRange == null || contentRange.lastIndexOf('/') < 0) {
+					throw new IOException("No Content-Range in the response");
+				}
+
+				try {
+					fileSize = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Unknown file size in Content-Range: " + contentRange);
+				}
+				rangeEnabled = true;
+			} else if (responseCode == HttpURLConnection.HTTP_OK) {
+				// the whole file for a range request, the server ignores ranges whatever Accept-Ranges says
+				fileSize = conn.getContentLengthLong();
+				rangeEnabled = false;
+			} else {
+				throw new IOException("Bad response code from server: " + responseCode);
+			}
+
+			if (fileSize < 0) {
+				throw new IOException("Server did not send the file size");
+			}
+
+			MirrorProbe probe = new MirrorProbe(url, fileSize, rangeEnabled, conn.getHeaderField("ETag"),
+					conn.getHeaderField("Last-Modified"), latency);
+
+			if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+				// read the single byte, so the connection can be kept for the workers
+				try (InputStream stream = conn.getInputStream()) {
+					while (stream.read() != -1) {
+					}
+				}
+			} else {
+				// don't read the whole file
+				conn.disconnect();
+			}
+
+			return probe;
+		} catch (IOException e) {
+			conn.disconnect();
+			throw e;
+		}
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public boolean isRangeEnabled() {
+		return rangeEnabled;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return the validator of the file on the mirror, see DownloadMetadata.GetValidator
+	 */
+	public String getValidator() {
+		return DownloadMetadata.GetValidator(this.etag, this.lastModified);
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+}
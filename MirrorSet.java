@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The mirrors of a file that can be downloaded from. All the mirrors are probed at the same time, the download
+ * starts as soon as the first one answers and the others join when their probe agrees with it (same size and same
+ * validator, otherwise If-Range would fail on them). Mirrors that fail their probe are never used.
+ * <p>
+ * Every mirror has a score, its average time to answer a request in nanoseconds, seeded by its probe. Workers pick
+ * a mirror at random, weighted so that faster mirrors get more segments.
+ */
+public class MirrorSet {
+	private static final double SCORE_WEIGHT = 0.2; // weight of a new sample in the average
+	private static final double FAILURE_PENALTY = 4.0;
+	private static final double MAX_SCORE = 60e9;
+
+	private static final ExecutorService PROBE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "mirror-probe");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<String, Double> scores = new LinkedHashMap<>();
+	private final int numOfProbes;
+	private final boolean resumed;
+
+	private MirrorProbe first;
+	private long fileSize;
+	private String validator;
+	private int finishedProbes = 0;
+	private int disagreeingProbes = 0;
+	private IOException lastError;
+
+	/**
+	 * Probe all the mirrors of a new download, the first one that answers decides the size and the validator
+	 *
+	 * @param urls             - urls of the mirrors
+	 * @param connectionBudget - budget every probe takes its connection from, null for none
+	 */
+	public MirrorSet(String[] urls, ConnectionBudget connectionBudget) {
+		this(urls, -1, null, connectionBudget);
+	}
+
+	/**
+	 * Probe all the mirrors of a download that is resumed, only mirrors that still have the same file are used
+	 *
+	 * @param urls             - urls of the mirrors
+	 * @param fileSize         - size of the file on disk, -1 to take it from the first mirror that answers
+	 * @param validator        - validator of the file on disk, null if it had none
+	 * @param connectionBudget - budget every probe takes its connection from, null for none
+	 */
+	public MirrorSet(String[] urls, long fileSize, String validator, ConnectionBudget connectionBudget) {
+		this.numOfProbes = urls.length;
+		this.resumed = fileSize >= 0;
+		this.fileSize = fileSize;
+		this.validator = validator;
+
+		for (String url : urls) {
+			PROBE_EXECUTOR.execute(() -> {
+				// a probe opens a connection like a worker does, so it counts against the same budget
+				if (connectionBudget != null) {
+					try {
+						connectionBudget.acquire();
+					} catch (InterruptedException e) {
+						this.fail(url, new InterruptedIOException("Interrupted while waiting for a connection"));
+						return;
+					}
+				}
+
+				try {
+					this.add(MirrorProbe.Probe(url));
+				} catch (IOException e) {
+					this.fail(url, e);
+				} finally {
+					if (connectionBudget != null) {
+						connectionBudget.release();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Block until the first mirror that agrees with the file answered, the other probes keep running
+	 *
+	 * @return the probe of that mirror
+	 * @throws RemoteChangedException if the mirrors answered, but none of them has the file of a resumed download
+	 * @throws IOException            if no mirror answered
+	 * @throws InterruptedException
+	 */
+	public synchronized MirrorProbe awaitFirst() throws IOException, InterruptedException {
+		while (this.first == null && this.finishedProbes < this.numOfProbes) {
+			this.wait();
+		}
+
+		if (this.first != null) {
+			return this.first;
+		}
+
+		if (this.disagreeingProbes > 0) {
+			throw new RemoteChangedException("no mirror has the same file and answers ranges");
+		}
+
+		throw new IOException("No mirror answered: " + (this.lastError == null ? "" : this.lastError.getMessage()));
+	}
+
+	/**
+	 * @return url of a mirror to download the next segment from, faster mirrors are picked more often
+	 */
+	public synchronized String pick() {
+		double total = 0;
+		for (double score : this.scores.values()) {
+			total += 1 / score;
+		}
+
+		double point = ThreadLocalRandom.current().nextDouble() * total;
+		String url = null;
+
+		for (Map.Entry<String, Double> entry : this.scores.entrySet()) {
+			url = entry.getKey();
+			point -= 1 / entry.getValue();
+			if (point < 0) {
+				break;
+			}
+		}
+
+		return url;
+	}
+
+	/**
+	 * @param url     - mirror that answered a request
+	 * @param latency - nanoseconds from the request to the response headers
+	 */
+	public synchronized void report(String url, long latency) {
+		this.scores.computeIfPresent(url, (key, score) -> (1 - SCORE_WEIGHT) * score + SCORE_WEIGHT * Math.max(latency, 1));
+	}
+
+	/**
+	 * @param url - mirror that failed a request, it is picked less often from now on
+	 */
+	public synchronized void reportFailure(String url) {
+		this.scores.computeIfPresent(url, (key, score) -> Math.min(score * FAILURE_PENALTY, MAX_SCORE));
+	}
+
+	/**
+	 * @return urls of the mirrors that are used so far
+	 */
+	public synchronized List<String> getUrls() {
+		return new ArrayList<>(this.scores.keySet());
+	}
+
+	private synchronized void add(MirrorProbe probe) {
+		this.finishedProbes++;
+
+		if (this.fileSize < 0) {
+			this.fileSize = probe.getFileSize();
+			this.validator = probe.getValidator();
+		}
+
+		// without a validator If-Range is not sent, so only the size has to match
+		if (probe.getFileSize() != this.fileSize ||
+				(this.validator != null && !this.validator.equals(probe.getValidator()))) {
+			System.err.printf("Not using mirror %s, it has a different file (size %d, validator %s)\n",
+					probe.getUrl(), probe.getFileSize(), probe.getValidator());
+			this.disagreeingProbes++;
+			this.notifyAll();
+			return;
+		}
+
+		// only the first mirror of a new download may ignore ranges, it then downloads the whole file alone
+		if (!probe.isRangeEnabled() && (this.first != null || this.resumed)) {
+			System.err.printf("Not using mirror %s, it does not answer range requests\n", probe.getUrl());
+			this.disagreeingProbes++;
+			this.notifyAll();
+			return;
+		}
+
+		if (this.first == null) {
+			this.first = probe;
+		} else {
+			System.out.printf("Mirror %s joined the download\n", probe.getUrl());
+		}
+
+		this.scores.put(probe.getUrl(), (double) Math.max(probe.getLatency(), 1));
+		this.notifyAll();
+	}
+
+	private synchronized void fail(String url, IOException e) {
+		System.err.printf("Not using mirror %s: %s\n", url, e.getMessage());
+		this.finishedProbes++;
+		this.lastError = e;
+		this.notifyAll();
+	}
+}
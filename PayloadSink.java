@@ -0,0 +1,16 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the disk writer puts the payloads that the workers produced. The sink owns the buffer of a payload once it
+ * was given to it, and returns it to the pool when the data is out.
+ */
+public interface PayloadSink extends Closeable {
+
+	/**
+	 * @param payload - payload to write
+	 * @return number of bytes of the file that are done after this payload
+	 * @throws IOException
+	 */
+	long write(SegmentPayload payload) throws IOException;
+}
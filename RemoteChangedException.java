@@ -0,0 +1,15 @@
+import java.io.IOException;
+
+/**
+ * The file on the server is not the file that the download started with, the data on disk can't be continued
+ */
+public class RemoteChangedException extends IOException {
+	private static final long serialVersionUID = 7730194526519348211L;
+
+	/**
+	 * @param message - what showed that the file changed
+	 */
+	public RemoteChangedException(String message) {
+		super(message);
+	}
+}
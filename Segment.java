@@ -17,9 +17,9 @@ public class Segment implements Serializable {
 	}
 
 	private static final long serialVersionUID = 598341237472344L;
-	private long startIndex;
+	private volatile long startIndex;
 	private long endIndex;
-	private SegmentState state;
+	private volatile SegmentState state;
 
 	/**
 	 * @param startIndex - index that starts the segment
@@ -58,18 +58,19 @@ public class Segment implements Serializable {
 	}
 
 	/**
-	 * @param segments - segments to get one from
+	 * @param segments      - segments to get one from, the workers share them so in progress segments are skipped
+	 * @param maxStartIndex - only segments that start before this index are given
 	 * @return - one of the segments that should be processed
 	 */
-	public static Segment GetOne(List<Segment> segments) {
+	public static Segment GetOne(List<Segment> segments, long maxStartIndex) {
 		for (Segment segment : segments) {
-			if (segment.state == SegmentState.AVAILABLE || segment.state == SegmentState.IN_PROGRESS) {
+			if (segment.state == SegmentState.AVAILABLE) {
 				// we want to get only segments that are not finished
-				if (segment.startIndex < segment.endIndex) {
+				if (segment.startIndex >= segment.endIndex) {
+					segment.setState(SegmentState.FINISHED_PRODUCING);
+				} else if (segment.startIndex < maxStartIndex) {
 					segment.state = SegmentState.ALLOCATED;
 					return segment;
-				} else {
-					segment.setState(SegmentState.FINISHED_PRODUCING);
 				}
 			}
 		}
@@ -6,6 +6,7 @@ public class SegmentPayload {
 	private byte[] data;
 	private int length;
 	private long seek;
+	private volatile long queuedAt = 0L; // System.nanoTime() when the payload got into the queue, 0 until then
 
 	/**
 	 * @param segment - the related segment
@@ -36,4 +37,15 @@ public class SegmentPayload {
 	public long getSeek() {
 		return seek;
 	}
+
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	/**
+	 * @param queuedAt - System.nanoTime() when the payload got into the queue
+	 */
+	public void setQueuedAt(long queuedAt) {
+		this.queuedAt = queuedAt;
+	}
 }
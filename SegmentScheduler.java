@@ -0,0 +1,197 @@
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Hands out the segments of a download to the workers. All the workers share one scheduler, so a worker that is
+ * done with its segments takes the ones that are left instead of stopping.
+ * <p>
+ * When the output is sequential the segments are kept in file order, and a worker is given a segment only if it
+ * starts inside the window after the frontier (the first byte that was not released to the output yet), so the data
+ * that waits to be reordered stays bounded.
+ * <p>
+ * Readers of a file that is still downloading can ask for a range, the segments of the range are given before
+ * any other segment and the reader waits until the range is written.
+ */
+public class SegmentScheduler {
+
+	private final List<Segment> segments;
+	private final long windowSize;
+
+	private final ArrayDeque<long[]> demands = new ArrayDeque<>(); // {start, end} of ranges readers wait for
+
+	private long frontier = 0L;
+	private boolean stopped = false;
+	private int waitingReaders = 0;
+
+	/**
+	 * @param segments - segments of the download
+	 */
+	public SegmentScheduler(List<Segment> segments) {
+		this(segments, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param segments   - segments of the download, sorted by their start
+	 * @param windowSize - number of bytes after the frontier that workers may download
+	 */
+	public SegmentScheduler(List<Segment> segments, long windowSize) {
+		this.segments = segments;
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Block until a segment inside the window is available
+	 *
+	 * @return a segment to download, null when no segment is left or the scheduler was stopped
+	 * @throws InterruptedException
+	 */
+	public synchronized Segment next() throws InterruptedException {
+		while (!this.stopped) {
+			long maxStartIndex = this.windowSize == Long.MAX_VALUE ? Long.MAX_VALUE : this.frontier + this.windowSize;
+
+			Segment segment = this.nextDemanded();
+			if (segment == null) {
+				segment = Segment.GetOne(this.segments, maxStartIndex);
+			}
+
+			if (segment != null || !this.hasAvailable()) {
+				return segment;
+			}
+
+			// the segments that are left are out of the window, wait for the frontier to move
+			this.wait();
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return an available segment of a range that a reader waits for, null if there is none
+	 */
+	private Segment nextDemanded() {
+		while (!this.demands.isEmpty()) {
+			long[] demand = this.demands.peekFirst();
+
+			for (Segment segment : this.segments) {
+				if (segment.getState() == Segment.SegmentState.AVAILABLE &&
+						segment.getStartIndex() < segment.getEndIndex() &&
+						segment.getStartIndex() < demand[1] && segment.getEndIndex() > demand[0]) {
+					segment.setState(Segment.SegmentState.ALLOCATED);
+					return segment;
+				}
+			}
+
+			// the rest of the range is already being downloaded or written
+			this.demands.pollFirst();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Block until the byte at the given index is written, and ask for its range to be downloaded first
+	 *
+	 * @param index  - index of the first byte to read
+	 * @param length - number of bytes the reader wants
+	 * @return number of bytes from index that are written, at least 1, or 0 if the scheduler stopped before
+	 * @throws InterruptedException
+	 */
+	public synchronized long awaitWritten(long index, long length) throws InterruptedException {
+		long written = this.getWritten(index, length);
+		if (written > 0) {
+			return written;
+		}
+
+		this.demands.addFirst(new long[]{index, index + length});
+		this.notifyAll();
+
+		this.waitingReaders++;
+		try {
+			while ((written = this.getWritten(index, length)) == 0 && !this.stopped) {
+				this.wait();
+			}
+		} finally {
+			this.waitingReaders--;
+		}
+
+		return written;
+	}
+
+	/**
+	 * @param index  - index of the first byte
+	 * @param length - number of bytes to check
+	 * @return number of bytes from index that are written, 0 if the byte at index is still missing
+	 */
+	public synchronized long getWritten(long index, long length) {
+		long end = index + length;
+
+		// a byte is missing while it is inside the part of a segment that was not written yet
+		for (Segment segment : this.segments) {
+			long start = segment.getStartIndex();
+			if (start < segment.getEndIndex() && start < end && segment.getEndIndex() > index) {
+				if (start <= index) {
+					return 0;
+				}
+				end = start;
+			}
+		}
+
+		return end - index;
+	}
+
+	/**
+	 * Wake up the readers after the disk writer wrote data
+	 */
+	public synchronized void written() {
+		if (this.waitingReaders > 0) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Give a segment back after a failed attempt, so any worker can continue it
+	 *
+	 * @param segment - segment that was not finished
+	 */
+	public synchronized void release(Segment segment) {
+		segment.setState(Segment.SegmentState.AVAILABLE);
+		this.notifyAll();
+	}
+
+	/**
+	 * @param frontier - index of the first byte that was not released to the output yet
+	 */
+	public synchronized void setFrontier(long frontier) {
+		this.frontier = frontier;
+		this.notifyAll();
+	}
+
+	/**
+	 * Stop handing out segments and wake up the workers that are waiting for the window
+	 */
+	public synchronized void stop() {
+		this.stopped = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * @return true if the workers should stop producing
+	 */
+	public synchronized boolean isStopped() {
+		return this.stopped;
+	}
+
+	private boolean hasAvailable() {
+		for (Segment segment : this.segments) {
+			if (segment.getState() == Segment.SegmentState.AVAILABLE) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public List<Segment> getSegments() {
+		return segments;
+	}
+}
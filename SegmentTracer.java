@@ -0,0 +1,339 @@
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+
+/**
+ * Records where the time of a download goes, for every segment request (DNS, connect, TLS, time to first byte, body,
+ * waiting for room in the queue) and for every payload (waiting in the queue, writing to disk).
+ * <p>
+ * Records are kept in a ring of longs that is allocated once, so recording allocates nothing. When the ring is full
+ * the oldest records are overwritten, the totals keep counting all of them. Timestamps are System.nanoTime() from
+ * the creation of the tracer.
+ * <p>
+ * The trace file has one tab separated line per record, its time is when the request or the write ended:
+ * R  time  worker  start  bytes  dns  connect  tls  ttfb  body  queue-full   (a segment request)
+ * F  time  worker  start  dns  connect  tls  ttfb                          (a request that failed before its body,
+ *                                                                          the phase it failed in has its time)
+ * P  time  seek  length  queue-wait  disk-write                             (a payload that was written)
+ * All durations are in microseconds. The lookup of the host is only seen on new HTTPS connections, through the socket
+ * factory, for plain HTTP it is part of connect and dns is 0.
+ */
+public class SegmentTracer {
+	public static final int DEFAULT_CAPACITY = 64 * 1024; // records
+
+	private static final int RECORD_SIZE = 11; // longs
+	private static final long REQUEST = 1;
+	private static final long PAYLOAD = 2;
+	private static final long FAILED_REQUEST = 3;
+
+	// phases, in the order of the totals
+	static final int PHASE_DNS = 0;
+	static final int PHASE_CONNECT = 1;
+	static final int PHASE_TLS = 2;
+	static final int PHASE_TTFB = 3;
+	static final int PHASE_BODY = 4;
+	static final int PHASE_QUEUE_FULL = 5;
+	static final int PHASE_QUEUE_WAIT = 6;
+	static final int PHASE_DISK_WRITE = 7;
+	private static final String[] PHASE_NAMES = {"dns", "connect", "tls", "ttfb", "body", "queue-full", "queue-wait",
+			"disk-write"};
+
+	// steps of the new connection of the current thread, noted by the socket factory
+	private static final int LOOKUP_STARTED = 0;
+	private static final int LOOKUP_DONE = 1;
+	private static final int TCP_CONNECTED = 2;
+	private static final ThreadLocal<long[]> CONNECTION = ThreadLocal.withInitial(() -> new long[3]);
+
+	private static SSLSocketFactory socketFactory;
+
+	private final long[] records;
+	private final int capacity;
+	private final long startTime = System.nanoTime();
+	private final long[] totals = new long[PHASE_NAMES.length];
+
+	private long recorded = 0L;
+	private long requests = 0L;
+	private long failedRequests = 0L;
+	private long payloads = 0L;
+	private long bytes = 0L;
+
+	/**
+	 * @param capacity - number of records to keep
+	 */
+	public SegmentTracer(int capacity) {
+		this.capacity = capacity;
+		this.records = new long[capacity * RECORD_SIZE];
+	}
+
+	/**
+	 * @param worker     - id of the worker
+	 * @param startIndex - first byte that was asked for
+	 * @param bytes      - number of bytes that were read
+	 * @param dns        - nanoseconds to resolve the host, 0 for a kept alive connection or plain HTTP
+	 * @param connect    - nanoseconds to open the TCP connection, 0 for a kept alive connection
+	 * @param tls        - nanoseconds of the TLS handshake, 0 for plain HTTP
+	 * @param ttfb       - nanoseconds from the request to the response headers
+	 * @param body       - nanoseconds spent reading the body
+	 * @param queueFull  - nanoseconds spent waiting for room in the queue of the disk writer
+	 */
+	public synchronized void recordRequest(int worker, long startIndex, long bytes, long dns, long connect, long tls,
+										   long ttfb, long body, long queueFull) {
+		int i = this.next(REQUEST);
+		this.records[i + 2] = worker;
+		this.records[i + 3] = startIndex;
+		this.records[i + 4] = bytes;
+		this.records[i + 5] = dns;
+		this.records[i + 6] = connect;
+		this.records[i + 7] = tls;
+		this.records[i + 8] = ttfb;
+		this.records[i + 9] = body;
+		this.records[i + 10] = queueFull;
+
+		this.requests++;
+		this.bytes += bytes;
+		this.totals[PHASE_DNS] += dns;
+		this.totals[PHASE_CONNECT] += connect;
+		this.totals[PHASE_TLS] += tls;
+		this.totals[PHASE_TTFB] += ttfb;
+		this.totals[PHASE_BODY] += body;
+		this.totals[PHASE_QUEUE_FULL] += queueFull;
+	}
+
+	/**
+	 * @param worker     - id of the worker
+	 * @param startIndex - first byte that was asked for
+	 * @param dns        - nanoseconds to resolve the host
+	 * @param connect    - nanoseconds to open the TCP connection
+	 * @param tls        - nanoseconds of the TLS handshake
+	 * @param ttfb       - nanoseconds from the request to the response headers or the failure
+	 */
+	public synchronized void recordFailedRequest(int worker, long startIndex, long dns, long connect, long tls,
+												 long ttfb) {
+		int i = this.next(FAILED_REQUEST);
+		this.records[i + 2] = worker;
+		this.records[i + 3] = startIndex;
+		this.records[i + 4] = dns;
+		this.records[i + 5] = connect;
+		this.records[i + 6] = tls;
+		this.records[i + 7] = ttfb;
+		for (int j = 8; j < RECORD_SIZE; j++) {
+			this.records[i + j] = 0L;
+		}
+
+		this.failedRequests++;
+		this.totals[PHASE_DNS] += dns;
+		this.totals[PHASE_CONNECT] += connect;
+		this.totals[PHASE_TLS] += tls;
+		this.totals[PHASE_TTFB] += ttfb;
+	}
+
+	/**
+	 * @param seek      - where in the file the payload was written
+	 * @param length    - length of the payload
+	 * @param queueWait - nanoseconds the payload waited in the queue
+	 * @param diskWrite - nanoseconds to write the payload
+	 */
+	public synchronized void recordPayload(long seek, int length, long queueWait, long diskWrite) {
+		int i = this.next(PAYLOAD);
+		this.records[i + 2] = seek;
+		this.records[i + 3] = length;
+		this.records[i + 4] = queueWait;
+		this.records[i + 5] = diskWrite;
+		for (int j = 6; j < RECORD_SIZE; j++) {
+			this.records[i + j] = 0L;
+		}
+
+		this.payloads++;
+		this.totals[PHASE_QUEUE_WAIT] += queueWait;
+		this.totals[PHASE_DISK_WRITE] += diskWrite;
+	}
+
+	/**
+	 * @return index of the record to fill, with its type and timestamp already set
+	 */
+	private int next(long type) {
+		int i = (int) (this.recorded % this.capacity) * RECORD_SIZE;
+		this.recorded++;
+
+		this.records[i] = type;
+		this.records[i + 1] = System.nanoTime() - this.startTime;
+
+		return i;
+	}
+
+	/**
+	 * Write the records that are kept, oldest first
+	 *
+	 * @param path - path of the trace file
+	 * @throws IOException
+	 */
+	public synchronized void write(String path) throws IOException {
+		long first = Math.max(0, this.recorded - this.capacity);
+
+		try (PrintWriter out = new PrintWriter(new FileWriter(path))) {
+			if (first > 0) {
+				out.printf("# %d oldest records were overwritten\n", first);
+			}
+
+			for (long n = first; n < this.recorded; n++) {
+				int i = (int) (n % this.capacity) * RECORD_SIZE;
+
+				if (this.records[i] == REQUEST) {
+					out.printf("R\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d\n", Micros(this.records[i + 1]),
+							this.records[i + 2], this.records[i + 3], this.records[i + 4], Micros(this.records[i + 5]),
+							Micros(this.records[i + 6]), Micros(this.records[i + 7]), Micros(this.records[i + 8]),
+							Micros(this.records[i + 9]), Micros(this.records[i + 10]));
+				} else if (this.records[i] == FAILED_REQUEST) {
+					out.printf("F\t%d\t%d\t%d\t%d\t%d\t%d\t%d\n", Micros(this.records[i + 1]),
+							this.records[i + 2], this.records[i + 3], Micros(this.records[i + 4]),
+							Micros(this.records[i + 5]), Micros(this.records[i + 6]), Micros(this.records[i + 7]));
+				} else {
+					out.printf("P\t%d\t%d\t%d\t%d\t%d\n", Micros(this.records[i + 1]), this.records[i + 2],
+							this.records[i + 3], Micros(this.records[i + 4]), Micros(this.records[i + 5]));
+				}
+			}
+
+			if (out.checkError()) {
+				throw new IOException("Error while writing the trace file " + path);
+			}
+		}
+	}
+
+	/**
+	 * @return the total time of every phase, to see which one limits the download. The phases of requests and
+	 * payloads that ran at the same time are all added, so a total may be longer than the download.
+	 */
+	public synchronized String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("%d requests, %d failed requests, %d payloads, %d bytes in %d ms", this.requests,
+				this.failedRequests, this.payloads, this.bytes, (System.nanoTime() - this.startTime) / 1_000_000));
+
+		for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+			summary.append(String.format(", %s %d ms", PHASE_NAMES[phase], this.totals[phase] / 1_000_000));
+		}
+
+		return summary.toString();
+	}
+
+	/**
+	 * Start timing a connection on the current thread
+	 */
+	static void StartConnect() {
+		long[] connection = CONNECTION.get();
+		connection[LOOKUP_STARTED] = 0L;
+		connection[LOOKUP_DONE] = 0L;
+		connection[TCP_CONNECTED] = 0L;
+	}
+
+	/**
+	 * @return when the new connection of the current thread started to resolve the host, 0 if the socket factory made
+	 * no connection since StartConnect
+	 */
+	static long GetLookupStarted() {
+		return CONNECTION.get()[LOOKUP_STARTED];
+	}
+
+	/**
+	 * @return when the host of the new connection of the current thread was resolved, 0 if it was not
+	 */
+	static long GetLookupDone() {
+		return CONNECTION.get()[LOOKUP_DONE];
+	}
+
+	/**
+	 * @return when the TCP connection of the current thread was ready for the TLS handshake, 0 if there was no
+	 * handshake since StartConnect
+	 */
+	static long GetTcpConnected() {
+		return CONNECTION.get()[TCP_CONNECTED];
+	}
+
+	/**
+	 * @return a factory that notes when a new connection resolves its host and when its TCP connection is ready, so the
+	 * lookup, the TCP connect and the TLS handshake can be timed apart.
+	 * The same factory is returned every time, so connections made with it can still be kept alive and reused.
+	 */
+	static synchronized SSLSocketFactory GetSocketFactory() {
+		if (socketFactory == null) {
+			socketFactory = new TimingSocketFactory((SSLSocketFactory) SSLSocketFactory.getDefault());
+		}
+
+		return socketFactory;
+	}
+
+	private static long Micros(long nanos) {
+		return nanos / 1000;
+	}
+
+	/**
+	 * Wraps the default factory. Its unconnected sockets are plain sockets, so HttpsURLConnection resolves the host and
+	 * opens the TCP connection with one of them and then layers TLS over it. A kept alive connection makes no socket,
+	 * so nothing is noted for it and no lookup of our own is ever made.
+	 */
+	private static class TimingSocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory factory;
+
+		TimingSocketFactory(SSLSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public Socket createSocket() {
+			// the connection resolves the host right after it has its socket
+			CONNECTION.get()[LOOKUP_STARTED] = System.nanoTime();
+			return new TimingSocket();
+		}
+
+		@Override
+		public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+			CONNECTION.get()[TCP_CONNECTED] = System.nanoTime();
+			return this.factory.createSocket(socket, host, port, autoClose);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return this.factory.createSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return this.factory.createSocket(host, port, localHost, localPort);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			return this.factory.createSocket(host, port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+				throws IOException {
+			return this.factory.createSocket(address, port, localAddress, localPort);
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return this.factory.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return this.factory.getSupportedCipherSuites();
+		}
+	}
+
+	/**
+	 * A plain socket that notes when it is asked to connect, which is when the host was resolved
+	 */
+	private static class TimingSocket extends Socket {
+		@Override
+		public void connect(SocketAddress endpoint, int timeout) throws IOException {
+			CONNECTION.get()[LOOKUP_DONE] = System.nanoTime();
+			super.connect(endpoint, timeout);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Releases the file in order to a channel while the segments are downloaded in parallel. Payloads that arrive
+ * before the frontier reaches them wait in a reorder buffer, which the scheduler keeps bounded by its window.
+ */
+public class SequentialSink implements PayloadSink {
+
+	private final WritableByteChannel channel;
+	private final SegmentScheduler scheduler;
+	private final BufferPool bufferPool;
+
+	private final TreeMap<Long, SegmentPayload> pending = new TreeMap<>();
+	private long position = 0L;
+
+	/**
+	 * @param channel    - channel to release the file to, it is not closed by the sink
+	 * @param scheduler  - scheduler to tell where the frontier is
+	 * @param bufferPool - pool to return the buffers of the payloads to
+	 */
+	public SequentialSink(WritableByteChannel channel, SegmentScheduler scheduler, BufferPool bufferPool) {
+		this.channel = channel;
+		this.scheduler = scheduler;
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public long write(SegmentPayload payload) throws IOException {
+		SegmentPayload previous = this.pending.put(payload.getSeek(), payload);
+
+		// a retry can produce the same offset again, keep the longer one
+		if (previous != null && previous != payload) {
+			if (previous.getLength() > payload.getLength()) {
+				this.pending.put(previous.getSeek(), previous);
+				this.bufferPool.release(payload.getData());
+			} else {
+				this.bufferPool.release(previous.getData());
+			}
+		}
+
+		long released = 0L;
+		Map.Entry<Long, SegmentPayload> first;
+
+		while ((first = this.pending.firstEntry()) != null && first.getKey() <= this.position) {
+			SegmentPayload next = this.pending.pollFirstEntry().getValue();
+
+			// skip the part that was already released, retries may overlap
+			long skip = this.position - next.getSeek();
+			if (skip < next.getLength()) {
+				ByteBuffer buffer = ByteBuffer.wrap(next.getData(), (int) skip, next.getLength() - (int) skip);
+				while (buffer.hasRemaining()) {
+					this.channel.write(buffer);
+				}
+
+				released += next.getLength() - skip;
+				this.position += next.getLength() - skip;
+			}
+
+			this.bufferPool.release(next.getData());
+		}
+
+		if (released > 0) {
+			this.scheduler.setFrontier(this.position);
+		}
+
+		return released;
+	}
+
+	/**
+	 * @return index of the first byte that was not released yet
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	@Override
+	public void close() {
+		for (SegmentPayload payload : this.pending.values()) {
+			this.bufferPool.release(payload.getData());
+		}
+
+		this.pending.clear();
+	}
+}